@@ -0,0 +1,113 @@
+/*
+ * Copyright 2016-2019 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.jena.examples;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.marklogic.semantics.jena.MarkLogicDatasetGraph;
+import com.marklogic.semantics.jena.client.DeleteStrategy;
+import com.marklogic.semantics.jena.client.JenaDatabaseClient;
+
+/**
+ * This is a jmh benchmark that loads a graph and then retracts every
+ * triple in it one by one, once for each delete strategy.  The
+ * removeGraph benchmark is the graph store baseline, which can only
+ * be used when the whole graph goes; it has its own state so that it
+ * runs once rather than once per strategy.
+ * Run it with "gradlew marklogic-jena-examples:jmh"
+ */
+public class DeleteBenchmarkExample {
+
+    private static final Node GRAPH = NodeFactory.createURI("http://example.org/delete-benchmark");
+    private static final Node PREDICATE = NodeFactory.createURI("http://example.org/p");
+
+    /**
+     * A dataset with the benchmark graph loaded before every invocation.
+     */
+    public abstract static class Loaded {
+
+        @Param({ "10000" })
+        public int triples;
+
+        MarkLogicDatasetGraph markLogicDatasetGraph;
+
+        @Setup(Level.Trial)
+        public void configure() {
+            markLogicDatasetGraph = ExampleUtils.loadPropsAndInit();
+            configure(markLogicDatasetGraph.getDatabaseClient());
+        }
+
+        protected void configure(JenaDatabaseClient client) {
+        }
+
+        @Setup(Level.Invocation)
+        public void load() {
+            for (int i = 0; i < triples; i++) {
+                markLogicDatasetGraph.add(GRAPH, subject(i), PREDICATE,
+                        NodeFactory.createLiteral("value " + i));
+            }
+            markLogicDatasetGraph.sync();
+        }
+
+        @TearDown(Level.Trial)
+        public void close() {
+            markLogicDatasetGraph.removeGraph(GRAPH);
+            markLogicDatasetGraph.close();
+        }
+    }
+
+    @State(value = Scope.Thread)
+    public static class ByStrategy extends Loaded {
+
+        @Param({ "DELETE_DATA", "VALUES" })
+        public DeleteStrategy strategy;
+
+        @Override
+        protected void configure(JenaDatabaseClient client) {
+            client.setDeleteStrategy(strategy);
+        }
+    }
+
+    @State(value = Scope.Thread)
+    public static class Baseline extends Loaded {
+    }
+
+    @Benchmark
+    public void deleteTriples(ByStrategy state) {
+        for (int i = 0; i < state.triples; i++) {
+            state.markLogicDatasetGraph.delete(GRAPH, subject(i), PREDICATE,
+                    NodeFactory.createLiteral("value " + i));
+        }
+        state.markLogicDatasetGraph.sync();
+    }
+
+    @Benchmark
+    public void removeGraph(Baseline state) {
+        state.markLogicDatasetGraph.removeGraph(GRAPH);
+    }
+
+    private static Node subject(int i) {
+        return NodeFactory.createURI("http://example.org/s" + i);
+    }
+}
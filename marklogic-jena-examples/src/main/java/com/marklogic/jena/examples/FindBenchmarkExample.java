@@ -0,0 +1,79 @@
+/*
+ * Copyright 2016-2019 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.jena.examples;
+
+import java.util.Iterator;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.sparql.core.Quad;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.marklogic.semantics.jena.MarkLogicDatasetGraph;
+import com.marklogic.semantics.jena.client.FindStrategy;
+
+@State(value = Scope.Thread)
+/**
+ * This is a jmh benchmark that scans a whole graph with find(), once
+ * with SELECT and SPARQL JSON and once with CONSTRUCT and N-Triples.
+ * Run it with "gradlew marklogic-jena-examples:jmh"
+ */
+public class FindBenchmarkExample {
+
+    private static final Node GRAPH = NodeFactory.createURI("http://example.org/find-benchmark");
+    private static final Node PREDICATE = NodeFactory.createURI("http://example.org/p");
+
+    @Param({ "SELECT", "CONSTRUCT" })
+    public FindStrategy strategy;
+
+    @Param({ "100000" })
+    public int triples;
+
+    private MarkLogicDatasetGraph markLogicDatasetGraph;
+
+    @Setup(Level.Trial)
+    public void configure() {
+        markLogicDatasetGraph = ExampleUtils.loadPropsAndInit();
+        markLogicDatasetGraph.getDatabaseClient().setFindStrategy(strategy);
+        markLogicDatasetGraph.removeGraph(GRAPH);
+        for (int i = 0; i < triples; i++) {
+            markLogicDatasetGraph.add(GRAPH, NodeFactory.createURI("http://example.org/s" + i),
+                    PREDICATE, NodeFactory.createLiteral("value " + i));
+        }
+        markLogicDatasetGraph.sync();
+    }
+
+    @TearDown(Level.Trial)
+    public void close() {
+        markLogicDatasetGraph.removeGraph(GRAPH);
+        markLogicDatasetGraph.close();
+    }
+
+    @Benchmark
+    public void scanGraph(Blackhole blackhole) {
+        Iterator<Quad> quads = markLogicDatasetGraph.find(GRAPH, Node.ANY, Node.ANY, Node.ANY);
+        while (quads.hasNext()) {
+            blackhole.consume(quads.next());
+        }
+    }
+}
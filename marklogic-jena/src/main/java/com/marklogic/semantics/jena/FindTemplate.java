@@ -0,0 +1,113 @@
+/*
+ * Copyright 2016-2019 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.semantics.jena;
+
+/**
+ * The SELECT queries behind find(), one for each combination of graph
+ * mode and bound positions, built once, and the CONSTRUCT queries that
+ * FindStrategy.CONSTRUCT sends instead.  Bound terms are passed as
+ * bindings of the pattern's own variables, so the server matches them
+ * in the triple pattern rather than with a FILTER, and only the unbound
+ * positions are projected.
+ */
+final class FindTemplate {
+
+    /**
+     * Where a find looks for triples.
+     */
+    enum GraphMode {
+        /** The default graph, set as the query's default graph URI. */
+        DEFAULT,
+        /** One named graph, bound to ?g. */
+        NAMED,
+        /** Every named graph, with ?g projected. */
+        ANY
+    }
+
+    private static final FindTemplate[][] TEMPLATES =
+            new FindTemplate[GraphMode.values().length][8];
+
+    static {
+        for (GraphMode mode : GraphMode.values()) {
+            for (int shape = 0; shape < 8; shape++) {
+                TEMPLATES[mode.ordinal()][shape] = new FindTemplate(mode,
+                        (shape & 4) != 0, (shape & 2) != 0, (shape & 1) != 0);
+            }
+        }
+    }
+
+    private final String sparql;
+    private final String construct;
+    private final String order;
+
+    private FindTemplate(GraphMode mode, boolean s, boolean p, boolean o) {
+        StringBuilder vars = new StringBuilder();
+        if (mode == GraphMode.ANY) {
+            vars.append("?g ");
+        }
+        if (!s) {
+            vars.append("?s ");
+        }
+        if (!p) {
+            vars.append("?p ");
+        }
+        if (!o) {
+            vars.append("?o ");
+        }
+        this.order = vars.toString().trim();
+        StringBuilder sb = new StringBuilder("SELECT ");
+        // a fully bound pattern still needs a column to return its row
+        sb.append(order.isEmpty() ? "(1 AS ?found)" : order);
+        String where = mode == GraphMode.DEFAULT
+                ? " where { ?s ?p ?o }" : " where { GRAPH ?g { ?s ?p ?o } }";
+        this.sparql = sb.append(where).toString();
+        this.construct = "CONSTRUCT { ?s ?p ?o }" + where;
+    }
+
+    /**
+     * @param mode Where to look.
+     * @param s Whether the subject is bound.
+     * @param p Whether the predicate is bound.
+     * @param o Whether the object is bound.
+     * @return The shared template for the pattern.
+     */
+    static FindTemplate get(GraphMode mode, boolean s, boolean p, boolean o) {
+        return TEMPLATES[mode.ordinal()][(s ? 4 : 0) | (p ? 2 : 0) | (o ? 1 : 0)];
+    }
+
+    /**
+     * @return The SELECT, without ORDER BY.
+     */
+    String getSparql() {
+        return sparql;
+    }
+
+    /**
+     * @return The CONSTRUCT of the matching triples, which loses the
+     *         graph in GraphMode.ANY.
+     */
+    String getConstruct() {
+        return construct;
+    }
+
+    /**
+     * @return The projected variables, to order pages by; empty when
+     *         every position is bound and there is at most one row.
+     */
+    String getOrder() {
+        return order;
+    }
+}
@@ -21,13 +21,21 @@ import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.function.Supplier;
 
+import org.apache.jena.atlas.iterator.Iter;
 import org.apache.jena.query.TxnType;
+import org.apache.jena.riot.lang.RiotParsers;
 import org.apache.jena.riot.system.PrefixMap;
 import org.apache.jena.riot.system.PrefixMapFactory;
 import org.apache.jena.sparql.core.*;
+import org.apache.jena.sparql.util.FmtUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -36,19 +44,26 @@ import org.apache.jena.graph.Node;
 import org.apache.jena.graph.NodeFactory;
 import org.apache.jena.query.Dataset;
 import org.apache.jena.query.DatasetFactory;
+import org.apache.jena.query.Query;
 import org.apache.jena.query.ReadWrite;
 import org.apache.jena.shared.Lock;
 import org.apache.jena.shared.LockNone;
 import com.marklogic.client.io.InputStreamHandle;
 import com.marklogic.client.query.QueryDefinition;
 import com.marklogic.client.semantics.GraphPermissions;
+import com.marklogic.client.semantics.RDFMimeTypes;
 import com.marklogic.client.semantics.RDFTypes;
 import com.marklogic.client.semantics.SPARQLBindings;
 import com.marklogic.client.semantics.SPARQLQueryDefinition;
 import com.marklogic.client.semantics.SPARQLRuleset;
+import com.marklogic.semantics.jena.client.FindStrategy;
 import com.marklogic.semantics.jena.client.JenaDatabaseClient;
+import com.marklogic.semantics.jena.client.LRUCache;
+import com.marklogic.semantics.jena.client.PagedQuadsIterator;
 import com.marklogic.semantics.jena.client.QuadsIterator;
+import com.marklogic.semantics.jena.client.SPARQLResultsJSONReader;
 import com.marklogic.semantics.jena.client.WrappingIterator;
+import com.marklogic.semantics.jena.engine.QueryResultCache;
 
 /**
  * A representation of MarkLogic's triple store as a DatasetGraph, plus a few
@@ -68,6 +83,11 @@ import com.marklogic.semantics.jena.client.WrappingIterator;
 public class MarkLogicDatasetGraph extends DatasetGraphTriplesQuads {
 
     public static final String DEFAULT_GRAPH_URI = "http://marklogic.com/semantics#default-graph";
+    private static final Node DEFAULT_GRAPH_NODE = NodeFactory.createURI(DEFAULT_GRAPH_URI);
+    /**
+     * The largest find() result that is kept in the find cache.
+     */
+    public static final int FIND_CACHE_MAX_QUADS = 10000;
     private static Logger log = LoggerFactory
             .getLogger(MarkLogicDatasetGraph.class);
 
@@ -84,6 +104,14 @@ public class MarkLogicDatasetGraph extends DatasetGraphTriplesQuads {
     private QueryDefinition constrainingQueryDefinition;
     private GraphPermissions updatePermissions;
 
+    /*
+     * Optional caches of find() results, keyed by pattern, and of
+     * triple counts, keyed by graph.
+     */
+    private volatile LRUCache<Quad, List<Quad>> findCache;
+    private volatile LRUCache<Node, Long> graphSizeCache;
+    private volatile QueryResultCache queryCache;
+
     /**
      * Creates a new MarkLogicDatasetGraph using the supplied DatabaseClient. If
      * this client can write to the database, then the DatasetGraph is
@@ -131,6 +159,7 @@ public class MarkLogicDatasetGraph extends DatasetGraphTriplesQuads {
         String query = "DROP SILENT ALL";
         SPARQLQueryDefinition qdef = client.newQueryDefinition(query);
         client.executeUpdate(qdef);
+        invalidateCaches(Node.ANY, Node.ANY, Node.ANY, Node.ANY);
     }
 
     /**
@@ -189,6 +218,7 @@ public class MarkLogicDatasetGraph extends DatasetGraphTriplesQuads {
         Node p1 = skolemize(p);
         Node o1 = skolemize(o);
         client.sinkQuad(null, s1, p1, o1);
+        invalidateCaches(DEFAULT_GRAPH_NODE, s1, p1, o1);
     }
 
     private Node skolemize(Node s) {
@@ -212,19 +242,22 @@ public class MarkLogicDatasetGraph extends DatasetGraphTriplesQuads {
         Node p1 = skolemize(p);
         Node o1 = skolemize(o);
         client.sinkQuad(g, s1, p1, o1);
+        invalidateCaches(g, s1, p1, o1);
     }
 
     /**
-     * @see org.apache.jena.sparql.core.DatasetGraphTriplesQuads
+     * @see org.apache.jena.sparql.core.DatasetGraphTriplesQuads Buffered
+     *      with the adds; a delete cancels a pending add of the same quad,
+     *      so the write buffer need not be flushed first.
      */
     @Override
     protected void deleteFromDftGraph(Node s, Node p, Node o) {
         checkIsOpen();
-        syncAdds();
         Node s1 = skolemize(s);
         Node p1 = skolemize(p);
         Node o1 = skolemize(o);
         client.sinkDelete(null, s1, p1, o1);
+        invalidateCaches(DEFAULT_GRAPH_NODE, s1, p1, o1);
     }
 
     /**
@@ -233,43 +266,153 @@ public class MarkLogicDatasetGraph extends DatasetGraphTriplesQuads {
     @Override
     protected void deleteFromNamedGraph(Node g, Node s, Node p, Node o) {
         checkIsOpen();
-        syncAdds();
         Node s1 = skolemize(s);
         Node p1 = skolemize(p);
         Node o1 = skolemize(o);
-        client.sinkDelete(g, s, p, o);
+        client.sinkDelete(g, s1, p1, o1);
+        invalidateCaches(g, s1, p1, o1);
     }
 
-    private InputStream selectTriplesInGraph(String graphName, Node s, Node p,
-            Node o) {
+    /**
+     * Deletes every quad matching the pattern with one DELETE ... WHERE
+     * on the server, instead of finding the matches and deleting them
+     * one by one.  Pending buffered changes are flushed first.  A null
+     * or wildcard graph matches the default graph and all named graphs.
+     * A fully concrete quad is buffered like any other delete.
+     * @see org.apache.jena.sparql.core.DatasetGraph
+     */
+    @Override
+    public void deleteAny(Node g, Node s, Node p, Node o) {
         checkIsOpen();
-        Node s1 = s != null ? s : Node.ANY;
-        Node p1 = p != null ? p : Node.ANY;
-        Node o1 = o != null ? o : Node.ANY;
-        Node s2 = skolemize(s1);
-        Node p2 = skolemize(p1);
-        Node o2 = skolemize(o1);
+        if (g != null && Quad.isUnionGraph(g)) {
+            super.deleteAny(g, s, p, o);
+            return;
+        }
+        if (isConcrete(g) && isConcrete(s) && isConcrete(p) && isConcrete(o)) {
+            delete(g, s, p, o);
+            return;
+        }
+        sync();
         SPARQLQueryDefinition qdef = client.newQueryDefinition("");
         StringBuilder sb = new StringBuilder();
-        sb.append("SELECT ?s ?p ?o where { ?s ?p ?o .");
-        if (s2 != Node.ANY) {
-            qdef.withBinding("a", s2.getURI());
+        sb.append("DELETE { GRAPH ?g { ?s ?p ?o } } WHERE { GRAPH ?g { ?s ?p ?o } ");
+        if (isConcrete(g)) {
+            qdef.withBinding("g", Quad.isDefaultGraph(g) ? DEFAULT_GRAPH_URI : g.getURI());
+        }
+        bindPattern(qdef, sb, s, p, o);
+        sb.append("}");
+        qdef.setSparql(sb.toString());
+        client.executeUpdate(qdef);
+        invalidateCaches(g, s, p, o);
+    }
+
+    private static boolean isConcrete(Node n) {
+        return wildcard(n) != Node.ANY;
+    }
+
+    /*
+     * Runs the precompiled find SELECT for the pattern's shape, in ordered
+     * pages if the client has a find page size.  Bound terms are bound to
+     * the pattern variables and filled back into the quads; g is only
+     * used in GraphMode.NAMED.
+     */
+    private Iterator<Quad> selectPattern(FindTemplate.GraphMode mode, Node g,
+            Node s, Node p, Node o) {
+        checkIsOpen();
+        Node s1 = skolemize(wildcard(s));
+        Node p1 = skolemize(wildcard(p));
+        Node o1 = skolemize(wildcard(o));
+        FindTemplate template = FindTemplate.get(mode,
+                s1 != Node.ANY, p1 != Node.ANY, o1 != Node.ANY);
+        SPARQLQueryDefinition qdef = client.newQueryDefinition("");
+        Node[] fixed = new Node[4];
+        bindFind(qdef, mode, g, s1, p1, o1, fixed);
+        long pageSize = client.getFindPageSize();
+        if (pageSize > 0 && !template.getOrder().isEmpty()) {
+            qdef.setSparql(template.getSparql() + " ORDER BY " + template.getOrder());
+            return new PagedQuadsIterator(client, qdef, fixed, pageSize);
+        }
+        qdef.setSparql(template.getSparql());
+        InputStreamHandle results = client.executeSelect(qdef,
+                new InputStreamHandle());
+        return new QuadsIterator(fixed, results.get());
+    }
+
+    /*
+     * Binds the graph and the concrete terms of a find pattern to the
+     * template's variables, and records them in fixed.
+     */
+    private void bindFind(SPARQLQueryDefinition qdef, FindTemplate.GraphMode mode,
+            Node g, Node s1, Node p1, Node o1, Node[] fixed) {
+        if (mode == FindTemplate.GraphMode.DEFAULT) {
+            qdef.setDefaultGraphUris(DEFAULT_GRAPH_URI);
+        } else if (mode == FindTemplate.GraphMode.NAMED) {
+            qdef.withBinding("g", g.getURI());
+            fixed[0] = g;
+        }
+        if (s1 != Node.ANY) {
+            qdef.withBinding("s", s1.getURI());
+            fixed[1] = s1;
+        }
+        if (p1 != Node.ANY) {
+            qdef.withBinding("p", p1.getURI());
+            fixed[2] = p1;
+        }
+        if (o1 != Node.ANY) {
+            bindObject(qdef, "o", o1);
+            fixed[3] = o1;
+        }
+    }
+
+    /*
+     * The CONSTRUCT counterpart of selectPattern, for
+     * FindStrategy.CONSTRUCT, in GraphMode.DEFAULT or NAMED.  Triples
+     * are parsed from the N-Triples response as the iterator advances,
+     * and closing it early closes the response.
+     */
+    private Iterator<Quad> constructPattern(FindTemplate.GraphMode mode, Node g,
+            Node s, Node p, Node o) {
+        checkIsOpen();
+        Node s1 = skolemize(wildcard(s));
+        Node p1 = skolemize(wildcard(p));
+        Node o1 = skolemize(wildcard(o));
+        FindTemplate template = FindTemplate.get(mode,
+                s1 != Node.ANY, p1 != Node.ANY, o1 != Node.ANY);
+        SPARQLQueryDefinition qdef = client.newQueryDefinition(template.getConstruct());
+        bindFind(qdef, mode, g, s1, p1, o1, new Node[4]);
+        InputStreamHandle results = client.executeConstruct(qdef,
+                new InputStreamHandle().withMimetype(RDFMimeTypes.NTRIPLES));
+        InputStream in = results.get();
+        if (in == null) {
+            return Collections.emptyIterator();
+        }
+        Node graphNode = mode == FindTemplate.GraphMode.NAMED ? g : null;
+        return Iter.onCloseIO(Iter.map(RiotParsers.createIteratorNTriples(in),
+                t -> new Quad(graphNode, t)), in);
+    }
+
+    /*
+     * Restricts ?s ?p ?o to the concrete parts of a find pattern with
+     * FILTERs on bound variables, so that the variables stay in the
+     * result.  null, Node.ANY and variables are wildcards.
+     */
+    private void bindPattern(SPARQLQueryDefinition qdef, StringBuilder sb,
+            Node s, Node p, Node o) {
+        Node s1 = skolemize(wildcard(s));
+        Node p1 = skolemize(wildcard(p));
+        Node o1 = skolemize(wildcard(o));
+        if (s1 != Node.ANY) {
+            qdef.withBinding("a", s1.getURI());
             sb.append("FILTER (?s = ?a) ");
         }
-        if (p2 != Node.ANY) {
-            qdef.withBinding("b", p2.getURI());
+        if (p1 != Node.ANY) {
+            qdef.withBinding("b", p1.getURI());
             sb.append("FILTER (?p = ?b) ");
         }
-        if (o2 != Node.ANY) {
-            qdef = bindObject(qdef, "c", o2);
+        if (o1 != Node.ANY) {
+            bindObject(qdef, "c", o1);
             sb.append("FILTER (?o = ?c) ");
         }
-        sb.append("}");
-        qdef.setSparql(sb.toString());
-        qdef.setDefaultGraphUris(graphName);
-        InputStreamHandle results = client.executeSelect(qdef,
-                new InputStreamHandle());
-        return results.get();
     }
 
     /**
@@ -278,9 +421,16 @@ public class MarkLogicDatasetGraph extends DatasetGraphTriplesQuads {
     @Override
     protected Iterator<Quad> findInDftGraph(Node s, Node p, Node o) {
         checkIsOpen();
-        sync();
-        InputStream results = selectTriplesInGraph(DEFAULT_GRAPH_URI, s, p, o);
-        return new QuadsIterator(results);
+        return cachedFind(DEFAULT_GRAPH_NODE, s, p, o, () -> {
+            Map<Quad, Boolean> pending = pendingChanges(null, s, p, o);
+            Iterator<Quad> found;
+            if (client.getFindStrategy() == FindStrategy.CONSTRUCT) {
+                found = constructPattern(FindTemplate.GraphMode.DEFAULT, null, s, p, o);
+            } else {
+                found = selectPattern(FindTemplate.GraphMode.DEFAULT, null, s, p, o);
+            }
+            return overlay(found, pending, true);
+        });
     }
 
     /**
@@ -290,9 +440,16 @@ public class MarkLogicDatasetGraph extends DatasetGraphTriplesQuads {
     protected Iterator<Quad> findInSpecificNamedGraph(Node g, Node s, Node p,
             Node o) {
         checkIsOpen();
-        sync();
-        InputStream results = selectTriplesInGraph(g.getURI(), s, p, o);
-        return new QuadsIterator(g.getURI(), results);
+        return cachedFind(g, s, p, o, () -> {
+            Map<Quad, Boolean> pending = pendingChanges(g, s, p, o);
+            Iterator<Quad> found;
+            if (client.getFindStrategy() == FindStrategy.CONSTRUCT) {
+                found = constructPattern(FindTemplate.GraphMode.NAMED, g, s, p, o);
+            } else {
+                found = selectPattern(FindTemplate.GraphMode.NAMED, g, s, p, o);
+            }
+            return overlay(found, pending, false);
+        });
     }
 
     /**
@@ -301,31 +458,312 @@ public class MarkLogicDatasetGraph extends DatasetGraphTriplesQuads {
     @Override
     protected Iterator<Quad> findInAnyNamedGraphs(Node s, Node p, Node o) {
         checkIsOpen();
-        sync();
-        Node s1 = s != null ? s : Node.ANY;
-        Node p1 = p != null ? p : Node.ANY;
-        Node o1 = o != null ? o : Node.ANY;
+        return cachedFind(Node.ANY, s, p, o, () -> {
+            Map<Quad, Boolean> pending = pendingChanges(Node.ANY, s, p, o);
+            return overlay(selectPattern(FindTemplate.GraphMode.ANY, null, s, p, o),
+                    pending, false);
+        });
+    }
 
-        SPARQLQueryDefinition qdef = client.newQueryDefinition("");
-        StringBuilder sb = new StringBuilder();
-        sb.append("SELECT ?g ?s ?p ?o where {GRAPH ?g { ?s ?p ?o }");
-        if (s1 != Node.ANY) {
-            qdef.withBinding("a", s1.getURI());
-            sb.append("FILTER (?s = ?a) ");
+    /**
+     * Runs many find patterns with one request.  The patterns not already
+     * in the find cache are sent as the branches of one SELECT joined by
+     * UNION, each tagged with its position, and the rows are grouped back
+     * by pattern.  Buffered changes are flushed first, or overlaid, as
+     * for find().  Patterns on the union graph are run with find().
+     * @param patterns The quads to match; a graph of Node.ANY matches
+     *                 every named graph, and Node.ANY, null or a variable
+     *                 in any other position matches anything.
+     * @return For each distinct pattern, in order, the quads that
+     *         find(pattern) would return.
+     */
+    public Map<Quad, List<Quad>> findAll(Collection<Quad> patterns) {
+        checkIsOpen();
+        Map<Quad, List<Quad>> results = new LinkedHashMap<>();
+        List<Quad> batch = new ArrayList<>();
+        LRUCache<Quad, List<Quad>> cache = findCache;
+        long version = cache == null ? 0 : cache.version();
+        for (Quad pattern : patterns) {
+            if (results.containsKey(pattern)) {
+                continue;
+            }
+            Node g = wildcard(pattern.getGraph());
+            if (g != Node.ANY && Quad.isUnionGraph(g)) {
+                results.put(pattern, Iter.toList(find(pattern)));
+                continue;
+            }
+            List<Quad> cached = cache == null ? null : cache.get(findCacheKey(
+                    cacheGraph(g), pattern.getSubject(), pattern.getPredicate(), pattern.getObject()));
+            results.put(pattern, cached);
+            if (cached == null) {
+                batch.add(pattern);
+            }
         }
-        if (p1 != Node.ANY) {
-            qdef.withBinding("b", p1.getURI());
-            sb.append("FILTER (?p = ?b) ");
+        if (batch.isEmpty()) {
+            return results;
         }
-        if (o1 != Node.ANY) {
-            qdef = bindObject(qdef, "c", o1);
-            sb.append("FILTER (?o = ?c) ");
+        List<Map<Quad, Boolean>> pending = new ArrayList<>();
+        for (Quad pattern : batch) {
+            Node g = wildcard(pattern.getGraph());
+            pending.add(pendingChanges(g != Node.ANY && Quad.isDefaultGraph(g) ? null : g,
+                    pattern.getSubject(), pattern.getPredicate(), pattern.getObject()));
+        }
+        List<List<Quad>> found = selectPatterns(batch);
+        for (int i = 0; i < batch.size(); i++) {
+            Quad pattern = batch.get(i);
+            Node g = wildcard(pattern.getGraph());
+            boolean defaultGraph = g != Node.ANY && Quad.isDefaultGraph(g);
+            List<Quad> quads = Iter.toList(overlay(found.get(i).iterator(), pending.get(i), defaultGraph));
+            if (cache != null && quads.size() <= FIND_CACHE_MAX_QUADS) {
+                quads = Collections.unmodifiableList(quads);
+                cache.put(findCacheKey(cacheGraph(g), pattern.getSubject(),
+                        pattern.getPredicate(), pattern.getObject()), quads, version);
+            }
+            results.put(pattern, quads);
+        }
+        return results;
+    }
+
+    /*
+     * The find cache key graph: DEFAULT_GRAPH_NODE for the default graph.
+     */
+    private static Node cacheGraph(Node g) {
+        return g != Node.ANY && Quad.isDefaultGraph(g) ? DEFAULT_GRAPH_NODE : g;
+    }
+
+    /*
+     * The SELECT behind findAll().  Concrete terms are written into each
+     * branch's pattern and filled back into its rows, which ?i ties to
+     * the branch.
+     */
+    private List<List<Quad>> selectPatterns(List<Quad> patterns) {
+        List<Node[]> fixed = new ArrayList<>();
+        List<List<Quad>> found = new ArrayList<>();
+        StringBuilder sb = new StringBuilder("SELECT ?i ?g ?s ?p ?o where { ");
+        for (int i = 0; i < patterns.size(); i++) {
+            Quad pattern = patterns.get(i);
+            Node g = wildcard(pattern.getGraph());
+            // the graph of the quads found: null for the default graph,
+            // Node.ANY when read from the row
+            Node[] terms = new Node[] {
+                    g != Node.ANY && Quad.isDefaultGraph(g) ? null : g,
+                    skolemize(wildcard(pattern.getSubject())),
+                    skolemize(wildcard(pattern.getPredicate())),
+                    skolemize(wildcard(pattern.getObject())) };
+            if (i > 0) {
+                sb.append("UNION ");
+            }
+            sb.append("{ GRAPH ").append(patternTerm(cacheGraph(g), "?g"))
+                    .append(" { ").append(patternTerm(terms[1], "?s"))
+                    .append(" ").append(patternTerm(terms[2], "?p"))
+                    .append(" ").append(patternTerm(terms[3], "?o"))
+                    .append(" } BIND (").append(i).append(" AS ?i) } ");
+            fixed.add(terms);
+            found.add(new ArrayList<>());
+        }
+        sb.append("}");
+        SPARQLQueryDefinition qdef = client.newQueryDefinition(sb.toString());
+        InputStreamHandle results = client.executeSelect(qdef, new InputStreamHandle());
+        try (SPARQLResultsJSONReader reader = new SPARQLResultsJSONReader(
+                results.get(), "i", "g", "s", "p", "o")) {
+            Node[] row = new Node[5];
+            while (reader.next(row)) {
+                int i = ((Number) row[0].getLiteralValue()).intValue();
+                Node[] terms = fixed.get(i);
+                found.get(i).add(new Quad(terms[0] != Node.ANY ? terms[0] : row[1],
+                        terms[1] != Node.ANY ? terms[1] : row[2],
+                        terms[2] != Node.ANY ? terms[2] : row[3],
+                        terms[3] != Node.ANY ? terms[3] : row[4]));
+            }
+        }
+        return found;
+    }
+
+    private static String patternTerm(Node n, String variable) {
+        return n == Node.ANY ? variable : FmtUtils.stringForNode(n);
+    }
+
+    /*
+     * Serves a find from the find cache, or runs it and caches the result
+     * if it is small enough.  g is DEFAULT_GRAPH_NODE for the default
+     * graph and Node.ANY for all named graphs.
+     */
+    private Iterator<Quad> cachedFind(Node g, Node s, Node p, Node o,
+            Supplier<Iterator<Quad>> find) {
+        LRUCache<Quad, List<Quad>> cache = findCache;
+        if (cache == null) {
+            return find.get();
+        }
+        Quad key = findCacheKey(g, s, p, o);
+        List<Quad> cached = cache.get(key);
+        if (cached != null) {
+            return cached.iterator();
+        }
+        long version = cache.version();
+        Iterator<Quad> found = find.get();
+        List<Quad> quads = new ArrayList<>();
+        while (quads.size() < FIND_CACHE_MAX_QUADS && found.hasNext()) {
+            quads.add(found.next());
+        }
+        if (found.hasNext()) {
+            // closing the concatenation closes found, cancelling its prefetch
+            return Iter.concat(quads.iterator(), found);
         }
+        cache.put(key, Collections.unmodifiableList(quads), version);
+        return quads.iterator();
+    }
+
+    private Quad findCacheKey(Node g, Node s, Node p, Node o) {
+        return new Quad(g, skolemize(wildcard(s)), skolemize(wildcard(p)),
+                skolemize(wildcard(o)));
+    }
+
+    /**
+     * Answers with one ASK on the server instead of running a find.
+     * Buffered changes are flushed first, or, when overlaid, consulted
+     * first, and a cached find of the same pattern is used if there is one.
+     * @see org.apache.jena.sparql.core.DatasetGraph
+     */
+    @Override
+    public boolean contains(Node g, Node s, Node p, Node o) {
+        checkIsOpen();
+        Node g1 = wildcard(g);
+        if (g1 != Node.ANY && Quad.isUnionGraph(g1)) {
+            return super.contains(g, s, p, o);
+        }
+        Node graph = g1 == Node.ANY || !Quad.isDefaultGraph(g1) ? g1 : DEFAULT_GRAPH_NODE;
+        LRUCache<Quad, List<Quad>> cache = findCache;
+        if (cache != null && graph != Node.ANY) {
+            List<Quad> cached = cache.get(findCacheKey(graph, s, p, o));
+            if (cached != null) {
+                return !cached.isEmpty();
+            }
+        }
+        Map<Quad, Boolean> pending = pendingChanges(graph, s, p, o);
+        if (pending.containsValue(true)) {
+            return true;
+        }
+        if (!pending.isEmpty()) {
+            // only deletes are pending: decisive for a single quad, but a
+            // pattern may still match on the server
+            if (isConcrete(graph) && isConcrete(s) && isConcrete(p) && isConcrete(o)) {
+                return false;
+            }
+            Iterator<Quad> found = find(g, s, p, o);
+            try {
+                return found.hasNext();
+            } finally {
+                Iter.close(found);
+            }
+        }
+        SPARQLQueryDefinition qdef = client.newQueryDefinition("");
+        StringBuilder sb = new StringBuilder();
+        if (graph == Node.ANY) {
+            sb.append("ASK where { GRAPH ?g { ?s ?p ?o } ");
+        } else {
+            sb.append("ASK where { ?s ?p ?o .");
+            qdef.setDefaultGraphUris(graph.getURI());
+        }
+        bindPattern(qdef, sb, s, p, o);
         sb.append("}");
         qdef.setSparql(sb.toString());
-        InputStreamHandle results = client.executeSelect(qdef,
-                new InputStreamHandle());
-        return new QuadsIterator(results.get());
+        return client.executeAsk(qdef);
+    }
+
+    /*
+     * Null, Node.ANY and variables all match anything.
+     */
+    private static Node wildcard(Node n) {
+        return n == null || n.isVariable() ? Node.ANY : n;
+    }
+
+    /**
+     * Drops the cached finds, graph sizes and query results that a change
+     * to quads matching a pattern could affect.  Local adds, deletes, graph
+     * operations and SPARQL updates run through this DatasetGraph do this
+     * themselves; call it after changing the database by other means.
+     * It takes constant time: every cached find and size for the graph,
+     * and for all graphs, is dropped, whatever the rest of the pattern.
+     * @param g The graph, or null or Node.ANY for all graphs.
+     * @param s Subject node; null, Node.ANY or a variable for any.
+     * @param p Property node; null, Node.ANY or a variable for any.
+     * @param o Object node; null, Node.ANY or a variable for any.
+     */
+    public void invalidateCaches(Node g, Node s, Node p, Node o) {
+        Node g1 = wildcard(g);
+        Object group = cacheGroup(g1 != Node.ANY && Quad.isDefaultGraph(g1) ? DEFAULT_GRAPH_NODE : g1);
+        LRUCache<Node, Long> sizes = graphSizeCache;
+        if (sizes != null) {
+            sizes.invalidateGroup(group);
+        }
+        LRUCache<Quad, List<Quad>> cache = findCache;
+        if (cache != null) {
+            cache.invalidateGroup(group);
+        }
+        QueryResultCache queries = queryCache;
+        if (queries != null) {
+            // any change can alter any query's results
+            queries.invalidate();
+        }
+    }
+
+    /*
+     * The cache group of a graph key: the graph itself, or null for the
+     * union graph and for all named graphs, which any change affects.
+     */
+    private static Object cacheGroup(Node g) {
+        return g == Node.ANY || Quad.isUnionGraph(g) ? null : g;
+    }
+
+    /**
+     * Caches the results of find(), and so of GraphView and Model
+     * lookups, so that repeated patterns need no request.  Results of
+     * more than {@value #FIND_CACHE_MAX_QUADS} quads are not cached.
+     * A change made through this DatasetGraph drops the entries for its
+     * graph and for all graphs; changes made by other clients are only
+     * seen once an entry expires.
+     * @param maxEntries The number of patterns to keep, or zero to turn
+     *                   the cache off.
+     * @param ttlMillis How long an entry may be served, or zero for no limit.
+     */
+    public void setFindCache(int maxEntries, long ttlMillis) {
+        this.findCache = maxEntries == 0 ? null
+                : new LRUCache<>(maxEntries, ttlMillis, key -> cacheGroup(key.getGraph()));
+    }
+
+    /*
+     * Called before a find queries the server.  Flushes both buffers, or,
+     * when overlaying, returns the buffered changes that match the
+     * pattern.  g is null for the default graph and Node.ANY for all.
+     */
+    private Map<Quad, Boolean> pendingChanges(Node g, Node s, Node p, Node o) {
+        if (!client.isOverlayPendingChanges()) {
+            sync();
+            return Collections.emptyMap();
+        }
+        return client.pendingChanges(g,
+                skolemize(s != null ? s : Node.ANY),
+                skolemize(p != null ? p : Node.ANY),
+                skolemize(o != null ? o : Node.ANY));
+    }
+
+    /*
+     * Applies buffered changes to the quads found on the server: drops the
+     * quads whose latest change is pending and appends the pending adds.
+     * Quads from a default graph find carry no graph node.
+     */
+    private static Iterator<Quad> overlay(Iterator<Quad> found,
+            Map<Quad, Boolean> pending, boolean defaultGraph) {
+        if (pending.isEmpty()) {
+            return found;
+        }
+        Iterator<Quad> unchanged = Iter.filter(found, quad -> !pending.containsKey(
+                defaultGraph ? new Quad(DEFAULT_GRAPH_NODE, quad.asTriple()) : quad));
+        Iterator<Quad> added = Iter.map(
+                Iter.filter(pending.entrySet().iterator(), Map.Entry::getValue),
+                change -> defaultGraph ? new Quad(null, change.getKey().asTriple())
+                        : change.getKey());
+        return Iter.concat(unchanged, added);
     }
 
     @Override
@@ -381,6 +819,7 @@ public class MarkLogicDatasetGraph extends DatasetGraphTriplesQuads {
         checkIsOpen();
         sync();
         client.abort();
+        invalidateCaches(Node.ANY, Node.ANY, Node.ANY, Node.ANY);
     }
 
     @Override
@@ -416,6 +855,28 @@ public class MarkLogicDatasetGraph extends DatasetGraphTriplesQuads {
         return TxnType.WRITE;
     }
 
+    /**
+     * Parses and prepares a query to be run many times with different
+     * bindings.  The current rulesets and constraining query are captured.
+     * @param queryString A SPARQL query.
+     * @return The prepared query, safe to share between threads.
+     */
+    public MarkLogicPreparedQuery prepareQuery(String queryString) {
+        checkIsOpen();
+        return new MarkLogicPreparedQuery(this, queryString);
+    }
+
+    /**
+     * Prepares a parsed query to be run many times with different
+     * bindings.  The query is copied, so later changes to it have no effect.
+     * @param query A SPARQL query.
+     * @return The prepared query, safe to share between threads.
+     */
+    public MarkLogicPreparedQuery prepareQuery(Query query) {
+        checkIsOpen();
+        return new MarkLogicPreparedQuery(this, query);
+    }
+
     /**
      * Gets a view of the DatasetGraph as a Dataset, which is used to back
      * queries.
@@ -427,26 +888,49 @@ public class MarkLogicDatasetGraph extends DatasetGraphTriplesQuads {
     }
 
     /**
+     * Buffered changes are flushed first, unless they are overlaid; the
+     * graph reads through this DatasetGraph either way.
      * @see org.apache.jena.sparql.core.DatasetGraph
      */
     @Override
     public Graph getDefaultGraph() {
         checkIsOpen();
-        sync();
-        return GraphView.createDefaultGraph(this);
+        syncUnlessOverlaid();
+        return new MarkLogicGraph(this, Quad.defaultGraphNodeGenerated);
     }
 
     /**
+     * Buffered changes are flushed first, unless they are overlaid; the
+     * graph reads through this DatasetGraph either way.
      * @see org.apache.jena.sparql.core.DatasetGraph
      */
     @Override
     public Graph getGraph(Node graphNode) {
         checkIsOpen();
-        sync();
-        return GraphView.createNamedGraph(this, graphNode);
+        syncUnlessOverlaid();
+        return new MarkLogicGraph(this, graphNode);
         //return client.readGraph(graphNode.getURI());
     }
 
+    /*
+     * A MarkLogicGraph's finds, contains and sizes go through this
+     * DatasetGraph, which overlays pending changes itself.
+     */
+    private void syncUnlessOverlaid() {
+        if (!client.isOverlayPendingChanges()) {
+            sync();
+        }
+    }
+
+    /**
+     * @see org.apache.jena.sparql.core.DatasetGraph
+     */
+    @Override
+    public Graph getUnionGraph() {
+        checkIsOpen();
+        return new MarkLogicGraph(this, Quad.unionGraph);
+    }
+
     /**
      * @see org.apache.jena.sparql.core.DatasetGraph
      */
@@ -455,6 +939,7 @@ public class MarkLogicDatasetGraph extends DatasetGraphTriplesQuads {
         checkIsOpen();
         sync();
         client.writeGraph(graphName.getURI(), graph);
+        invalidateCaches(graphName, Node.ANY, Node.ANY, Node.ANY);
     }
 
     /**
@@ -470,6 +955,7 @@ public class MarkLogicDatasetGraph extends DatasetGraphTriplesQuads {
         checkIsOpen();
         sync();
         client.mergeGraph(graphName.getURI(), graph);
+        invalidateCaches(graphName, Node.ANY, Node.ANY, Node.ANY);
     }
 
     /**
@@ -480,14 +966,117 @@ public class MarkLogicDatasetGraph extends DatasetGraphTriplesQuads {
         checkIsOpen();
         sync();
         client.deleteGraph(graphName.getURI());
+        invalidateCaches(graphName, Node.ANY, Node.ANY, Node.ANY);
     }
 
-    @Override
     /**
-     * Not supported by MarkLogicDatasetGraph.
+     * The number of named graphs, counted on the server.  The default
+     * graph is not included.  Buffered changes are flushed first.
      */
+    @Override
     public long size() {
-        throw new UnsupportedOperationException("Dataset.size()");
+        checkIsOpen();
+        return countCached(Node.ANY, () -> {
+            SPARQLQueryDefinition qdef = client.newQueryDefinition(
+                    "SELECT (COUNT(DISTINCT ?g) AS ?count) where { GRAPH ?g { ?s ?p ?o } FILTER (?g != ?d) }");
+            qdef.withBinding("d", DEFAULT_GRAPH_URI);
+            return count(qdef);
+        });
+    }
+
+    /**
+     * Counts the triples in one graph on the server, without retrieving
+     * them.  Buffered changes are flushed first.
+     * @param graphName The graph, {@link Quad#defaultGraphIRI} (or null)
+     *                  for the default graph, or {@link Quad#unionGraph}
+     *                  for the distinct triples of all graphs.
+     * @return The number of triples in the graph; zero if it does not exist.
+     */
+    public long graphSize(Node graphName) {
+        checkIsOpen();
+        Node graph = graphName == null || Quad.isDefaultGraph(graphName) ? DEFAULT_GRAPH_NODE : graphName;
+        return countCached(graph, () -> {
+            SPARQLQueryDefinition qdef;
+            if (Quad.isUnionGraph(graph)) {
+                qdef = client.newQueryDefinition(
+                        "SELECT (COUNT(*) AS ?count) where { SELECT DISTINCT ?s ?p ?o where { GRAPH ?g { ?s ?p ?o } } }");
+            } else {
+                qdef = client.newQueryDefinition(
+                        "SELECT (COUNT(*) AS ?count) where { ?s ?p ?o }");
+                qdef.setDefaultGraphUris(graph.getURI());
+            }
+            return count(qdef);
+        });
+    }
+
+    /*
+     * Serves a count from the graph size cache, or syncs and computes it.
+     * The key is the graph node, Node.ANY for the number of named graphs.
+     */
+    private long countCached(Node key, Supplier<Long> counter) {
+        LRUCache<Node, Long> cache = graphSizeCache;
+        if (cache == null) {
+            sync();
+            return counter.get();
+        }
+        Long cached = cache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        long version = cache.version();
+        sync();
+        long count = counter.get();
+        cache.put(key, count, version);
+        return count;
+    }
+
+    private long count(SPARQLQueryDefinition qdef) {
+        InputStreamHandle results = client.executeSelect(qdef, new InputStreamHandle());
+        try (SPARQLResultsJSONReader reader = new SPARQLResultsJSONReader(results.get(), "count")) {
+            Node[] row = new Node[1];
+            if (!reader.next(row) || row[0] == null || !row[0].isLiteral()) {
+                throw new MarkLogicJenaException("Count query returned no count");
+            }
+            return ((Number) row[0].getLiteralValue()).longValue();
+        }
+    }
+
+    /**
+     * Caches the results of {@link #size()} and {@link #graphSize(Node)},
+     * so that tools which check sizes repeatedly need no request.  A
+     * graph's entry is dropped whenever a change made through this
+     * DatasetGraph touches that graph.
+     * @param maxGraphs The number of graph counts to keep, or zero to
+     *                  turn the cache off.
+     * @param ttlMillis How long a count may be served, or zero for no limit.
+     */
+    public void setGraphSizeCache(int maxGraphs, long ttlMillis) {
+        this.graphSizeCache = maxGraphs == 0 ? null
+                : new LRUCache<>(maxGraphs, ttlMillis, MarkLogicDatasetGraph::cacheGroup);
+    }
+
+    /**
+     * Caches the responses to SPARQL queries run against this
+     * DatasetGraph, keyed by the query, its initial bindings, and the
+     * rulesets and constraining query in effect.  Every change made
+     * through this DatasetGraph, its buffers or a SPARQL update clears the
+     * cache; changes made by other clients are only seen once an entry
+     * expires.  Queries run inside a transaction are not cached.
+     * @param maxEntries The number of responses to keep, or zero to turn
+     *                   the cache off.
+     * @param maxBytes The most bytes of responses to keep, or zero for no
+     *                 limit.  A larger response is not cached.
+     * @param ttlMillis How long a response may be served, or zero for no limit.
+     */
+    public void setQueryCache(int maxEntries, long maxBytes, long ttlMillis) {
+        this.queryCache = maxEntries == 0 ? null : new QueryResultCache(maxEntries, maxBytes, ttlMillis);
+    }
+
+    /**
+     * @return The query result cache, or null if it is off.
+     */
+    public QueryResultCache getQueryCache() {
+        return queryCache;
     }
 
     /**
@@ -551,8 +1140,8 @@ public class MarkLogicDatasetGraph extends DatasetGraphTriplesQuads {
     }
 
     /**
-     * Used for deletes, forces the write buffer to sync before
-     * constructing a delete buffer.
+     * Forces only the write buffer to flush to the server.  Deletes no
+     * longer need this; a delete cancels any pending add of the same quad.
      */
     public void syncAdds() {
         client.syncAdds();
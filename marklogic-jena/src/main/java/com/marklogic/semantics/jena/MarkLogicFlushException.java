@@ -0,0 +1,43 @@
+/*
+ * Copyright 2016-2019 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.semantics.jena;
+
+/**
+ * Buffered triples that a background flush failed to send.  The batches
+ * are not retried; the exception counts the triples lost, and is thrown
+ * again on every write and sync until
+ * {@link com.marklogic.semantics.jena.client.JenaDatabaseClient#clearFlushFailure()}
+ * is called.
+ */
+@SuppressWarnings("serial")
+public class MarkLogicFlushException extends MarkLogicJenaException {
+
+    private final long lostTriples;
+
+    public MarkLogicFlushException(String message, Exception e, long lostTriples) {
+        super(message, e);
+        this.lostTriples = lostTriples;
+    }
+
+    /**
+     * @return The number of triples, added or deleted, that did not
+     *         reach MarkLogic.
+     */
+    public long getLostTriples() {
+        return lostTriples;
+    }
+
+}
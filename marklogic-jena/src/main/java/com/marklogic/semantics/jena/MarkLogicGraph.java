@@ -0,0 +1,192 @@
+/*
+ * Copyright 2016-2019 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.semantics.jena;
+
+import java.util.Iterator;
+
+import org.apache.jena.atlas.iterator.Iter;
+import org.apache.jena.graph.Capabilities;
+import org.apache.jena.graph.GraphEvents;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.TransactionHandler;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.graph.impl.AllCapabilities;
+import org.apache.jena.graph.impl.GraphBase;
+import org.apache.jena.riot.system.Prefixes;
+import org.apache.jena.shared.PrefixMapping;
+import org.apache.jena.sparql.core.Quad;
+import org.apache.jena.sparql.core.TransactionHandlerView;
+import org.apache.jena.util.iterator.ExtendedIterator;
+import org.apache.jena.util.iterator.WrappedIterator;
+
+/**
+ * The default graph, a named graph or the union graph of a
+ * {@link MarkLogicDatasetGraph}.  Each operation goes straight to the
+ * dataset's request for this graph: finds and counts are single queries
+ * against the graph, adds and deletes join the dataset's buffers, and
+ * clear() and remove() are one server-side DELETE.  Listeners are
+ * supported, but no events are built until one is registered.
+ */
+public class MarkLogicGraph extends GraphBase {
+
+    private final MarkLogicDatasetGraph dsg;
+    private final Node graphName;
+
+    MarkLogicGraph(MarkLogicDatasetGraph dsg, Node graphName) {
+        this.dsg = dsg;
+        this.graphName = graphName == null ? Quad.defaultGraphNodeGenerated : graphName;
+    }
+
+    /**
+     * @return The dataset this graph belongs to.
+     */
+    public MarkLogicDatasetGraph getDataset() {
+        return dsg;
+    }
+
+    /**
+     * @return The name of this graph; {@link Quad#defaultGraphNodeGenerated}
+     *         for the default graph.
+     */
+    public Node getGraphName() {
+        return graphName;
+    }
+
+    private boolean isDefaultGraph() {
+        return Quad.isDefaultGraph(graphName);
+    }
+
+    @Override
+    protected ExtendedIterator<Triple> graphBaseFind(Triple t) {
+        Triple m = t == null ? Triple.ANY : t;
+        Node s = m.getMatchSubject();
+        Node p = m.getMatchPredicate();
+        Node o = m.getMatchObject();
+        Iterator<Quad> found;
+        if (isDefaultGraph()) {
+            found = dsg.findInDftGraph(s, p, o);
+        } else if (Quad.isUnionGraph(graphName)) {
+            found = dsg.find(graphName, s, p, o);
+        } else {
+            found = dsg.findInSpecificNamedGraph(graphName, s, p, o);
+        }
+        Iterator<Quad> quads = found;
+        // Jena's ExtendedIterator only closes its own kind, so pass close()
+        // through to a paged or streaming find
+        ExtendedIterator<Quad> closing = new WrappedIterator<Quad>(quads, true) {
+            @Override
+            public void close() {
+                Iter.close(quads);
+            }
+        };
+        return closing.mapWith(Quad::asTriple);
+    }
+
+    @Override
+    protected boolean graphBaseContains(Triple t) {
+        return dsg.contains(graphName, t.getSubject(), t.getPredicate(), t.getObject());
+    }
+
+    @Override
+    protected int graphBaseSize() {
+        long size = dsg.graphSize(graphName);
+        return (int) Math.min(size, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return !graphBaseContains(Triple.ANY);
+    }
+
+    @Override
+    public void performAdd(Triple t) {
+        if (isDefaultGraph()) {
+            dsg.addToDftGraph(t.getSubject(), t.getPredicate(), t.getObject());
+        } else {
+            dsg.addToNamedGraph(graphName, t.getSubject(), t.getPredicate(), t.getObject());
+        }
+    }
+
+    @Override
+    public void performDelete(Triple t) {
+        if (isDefaultGraph()) {
+            dsg.deleteFromDftGraph(t.getSubject(), t.getPredicate(), t.getObject());
+        } else {
+            dsg.deleteFromNamedGraph(graphName, t.getSubject(), t.getPredicate(), t.getObject());
+        }
+    }
+
+    /**
+     * Deletes every triple in this graph with one request.
+     */
+    @Override
+    public void clear() {
+        checkOpen();
+        dsg.deleteAny(graphName, Node.ANY, Node.ANY, Node.ANY);
+        if (listening()) {
+            getEventManager().notifyEvent(this, GraphEvents.removeAll);
+        }
+    }
+
+    /**
+     * Deletes the triples matching a pattern with one request.
+     */
+    @Override
+    public void remove(Node s, Node p, Node o) {
+        checkOpen();
+        dsg.deleteAny(graphName, s, p, o);
+        if (listening()) {
+            getEventManager().notifyEvent(this, GraphEvents.remove(s, p, o));
+        }
+    }
+
+    /*
+     * The event manager is created on first use, so a graph that nobody
+     * listens to pays for no events.
+     */
+    private boolean listening() {
+        return gem != null && gem.listening();
+    }
+
+    @Override
+    public void notifyAdd(Triple t) {
+        if (listening()) {
+            super.notifyAdd(t);
+        }
+    }
+
+    @Override
+    public void notifyDelete(Triple t) {
+        if (listening()) {
+            super.notifyDelete(t);
+        }
+    }
+
+    @Override
+    public TransactionHandler getTransactionHandler() {
+        return new TransactionHandlerView(dsg);
+    }
+
+    @Override
+    public Capabilities getCapabilities() {
+        return AllCapabilities.updateAllowed;
+    }
+
+    @Override
+    protected PrefixMapping createPrefixMapping() {
+        return Prefixes.adapt(dsg.prefixes());
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2016-2019 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.semantics.jena;
+
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.query.Query;
+import org.apache.jena.query.QueryFactory;
+import org.apache.jena.query.QuerySolution;
+import org.apache.jena.query.ResultSet;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.engine.binding.BindingBuilder;
+import org.apache.jena.sparql.engine.binding.BindingFactory;
+import org.apache.jena.sparql.exec.RowSetStream;
+import org.apache.jena.sparql.graph.GraphFactory;
+import org.apache.jena.sparql.modify.TemplateLib;
+
+import com.marklogic.client.io.InputStreamHandle;
+import com.marklogic.client.query.QueryDefinition;
+import com.marklogic.client.semantics.RDFMimeTypes;
+import com.marklogic.client.semantics.SPARQLQueryDefinition;
+import com.marklogic.client.semantics.SPARQLRuleset;
+import com.marklogic.semantics.jena.client.SPARQLResultsJSONReader;
+
+/**
+ * A SPARQL query that is parsed and serialized once and then run any
+ * number of times, from any number of threads, against a
+ * {@link MarkLogicDatasetGraph}.  The rulesets and constraining query of
+ * the dataset are captured when the query is prepared; each execution
+ * only supplies variable bindings and, optionally, a limit and offset.
+ * Get one with {@link MarkLogicDatasetGraph#prepareQuery(String)}.
+ */
+public class MarkLogicPreparedQuery {
+
+    private final MarkLogicDatasetGraph dsg;
+    private final Query query;
+    private final String sparql;
+    private final String baseUri;
+    private final SPARQLRuleset[] rulesets;
+    private final QueryDefinition constrainingQueryDefinition;
+    private final List<Var> resultVars;
+    private final String[] resultVarNames;
+
+    MarkLogicPreparedQuery(MarkLogicDatasetGraph dsg, Query query) {
+        this.dsg = dsg;
+        this.query = query.cloneQuery();
+        Query remote = query.cloneQuery();
+        if (query.isConstructType()) {
+            // the WHERE clause runs as a SELECT, and the template is
+            // filled in here from its rows, as MarkLogicQueryEngine does
+            remote.setQuerySelectType();
+            remote.setQueryResultStar(true);
+            remote.setResultVars();
+        }
+        if (remote.isSelectType()) {
+            // LIMIT and OFFSET become paging parameters of each request
+            remote.setLimit(Query.NOLIMIT);
+            remote.setOffset(Query.NOLIMIT);
+        }
+        this.sparql = remote.toString();
+        this.baseUri = query.getBaseURI();
+        SPARQLRuleset[] current = dsg.getRulesets();
+        this.rulesets = current == null ? null : current.clone();
+        this.constrainingQueryDefinition = dsg.getConstrainingQueryDefinition();
+        this.resultVars = remote.isSelectType() ? Var.varList(remote.getResultVars()) : null;
+        this.resultVarNames = remote.isSelectType()
+                ? remote.getResultVars().toArray(new String[0]) : null;
+    }
+
+    MarkLogicPreparedQuery(MarkLogicDatasetGraph dsg, String queryString) {
+        this(dsg, QueryFactory.create(queryString));
+    }
+
+    /**
+     * @return The query text sent to MarkLogic.  A SELECT or CONSTRUCT is
+     *         sent without LIMIT or OFFSET, and a CONSTRUCT as a SELECT *
+     *         of its WHERE clause.
+     */
+    public String getSparql() {
+        return sparql;
+    }
+
+    /**
+     * Runs a SELECT with the query's own LIMIT and OFFSET.
+     * @param bindings Values for variables of the query, or null.
+     * @return The results, read from the response as they are consumed.
+     *         Close the result set to abandon the rest.
+     */
+    public ResultSet execSelect(QuerySolution bindings) {
+        return execSelect(bindings, query.getOffset(), query.getLimit());
+    }
+
+    /**
+     * Runs a SELECT for one page of results.
+     * @param bindings Values for variables of the query, or null.
+     * @param offset The number of results to skip, or Query.NOLIMIT.
+     * @param limit The most results to return, or Query.NOLIMIT.
+     * @return The results, read from the response as they are consumed.
+     *         Close the result set to abandon the rest.
+     */
+    public ResultSet execSelect(QuerySolution bindings, long offset, long limit) {
+        if (!query.isSelectType()) {
+            throw new MarkLogicJenaException("Not a SELECT query");
+        }
+        return ResultSet.adapt(RowSetStream.create(resultVars, select(bindings, offset, limit)));
+    }
+
+    /*
+     * Runs the SELECT form of the query for one page of rows.
+     */
+    private Rows select(QuerySolution bindings, long offset, long limit) {
+        SPARQLQueryDefinition qdef = newQueryDefinition(bindings);
+        // offset is off-by-one from 'start'
+        Long start = offset == Query.NOLIMIT ? null : offset + 1;
+        Long pageLength = limit == Query.NOLIMIT ? null : limit;
+        InputStreamHandle handle = dsg.getDatabaseClient().executeSelect(qdef,
+                new InputStreamHandle(), start, pageLength);
+        return new Rows(handle.get());
+    }
+
+    /**
+     * Runs an ASK.
+     * @param bindings Values for variables of the query, or null.
+     * @return The answer.
+     */
+    public boolean execAsk(QuerySolution bindings) {
+        if (!query.isAskType()) {
+            throw new MarkLogicJenaException("Not an ASK query");
+        }
+        return dsg.getDatabaseClient().executeAsk(newQueryDefinition(bindings));
+    }
+
+    /**
+     * Runs a CONSTRUCT, with the query's own LIMIT and OFFSET, or a
+     * DESCRIBE.
+     * @param bindings Values for variables of the query, or null.
+     * @return A graph of the triples returned.
+     */
+    public Graph execGraph(QuerySolution bindings) {
+        Graph graph = GraphFactory.createDefaultGraph();
+        if (query.isConstructType()) {
+            Rows rows = select(bindings, query.getOffset(), query.getLimit());
+            try {
+                Iterator<Triple> triples = TemplateLib.calcTriples(
+                        query.getConstructTemplate().getTriples(), rows);
+                while (triples.hasNext()) {
+                    Triple t = triples.next();
+                    if (t.isConcrete()) {
+                        graph.add(t);
+                    }
+                }
+            } finally {
+                rows.close();
+            }
+        } else if (query.isDescribeType()) {
+            InputStreamHandle handle = new InputStreamHandle().withMimetype(RDFMimeTypes.NTRIPLES);
+            dsg.getDatabaseClient().executeDescribe(newQueryDefinition(bindings), handle);
+            if (handle.get() != null) {
+                RDFDataMgr.read(graph, handle.get(), Lang.NTRIPLES);
+            }
+        } else {
+            throw new MarkLogicJenaException("Not a CONSTRUCT or DESCRIBE query");
+        }
+        return graph;
+    }
+
+    /*
+     * A fresh definition for one execution, after flushing buffered
+     * changes as MarkLogicQueryEngine does.
+     */
+    private SPARQLQueryDefinition newQueryDefinition(QuerySolution bindings) {
+        dsg.sync();
+        SPARQLQueryDefinition qdef = dsg.getDatabaseClient().newQueryDefinition(sparql);
+        if (baseUri != null) {
+            qdef.setBaseUri(baseUri);
+        }
+        if (rulesets != null) {
+            qdef.setRulesets(rulesets);
+        }
+        qdef.setConstrainingQueryDefinition(constrainingQueryDefinition);
+        if (bindings != null) {
+            Iterator<String> names = bindings.varNames();
+            while (names.hasNext()) {
+                String name = names.next();
+                MarkLogicDatasetGraph.bindObject(qdef, name, bindings.get(name).asNode());
+            }
+        }
+        return qdef;
+    }
+
+    /*
+     * Streams the rows of a SELECT response; closing it abandons the
+     * rest of the response.
+     */
+    private class Rows implements Iterator<Binding>, org.apache.jena.atlas.lib.Closeable {
+
+        private final SPARQLResultsJSONReader results;
+        private final Node[] row = new Node[resultVarNames.length];
+        private boolean ready = false;
+        private boolean exhausted = false;
+
+        Rows(InputStream in) {
+            this.results = new SPARQLResultsJSONReader(in, resultVarNames);
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (!ready && !exhausted) {
+                ready = results.next(row);
+                exhausted = !ready;
+            }
+            return ready;
+        }
+
+        @Override
+        public Binding next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            ready = false;
+            BindingBuilder binding = BindingFactory.builder();
+            for (int i = 0; i < row.length; i++) {
+                if (row[i] != null) {
+                    binding.add(resultVars.get(i), row[i]);
+                }
+            }
+            return binding.build();
+        }
+
+        @Override
+        public void close() {
+            results.close();
+        }
+    }
+}
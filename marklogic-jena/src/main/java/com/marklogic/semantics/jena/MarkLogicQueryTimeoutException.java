@@ -0,0 +1,41 @@
+/*
+ * Copyright 2016-2019 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.semantics.jena;
+
+import org.apache.jena.query.QueryCancelledException;
+
+/**
+ * A query that MarkLogic stopped because it ran past the app server's
+ * request time limit.  It is a {@link QueryCancelledException}, as Jena
+ * reports its own timeouts, so callers can handle both the same way and
+ * apart from other failures.
+ */
+@SuppressWarnings("serial")
+public class MarkLogicQueryTimeoutException extends QueryCancelledException {
+
+    private final String message;
+
+    public MarkLogicQueryTimeoutException(String message, Exception e) {
+        this.message = message;
+        initCause(e);
+    }
+
+    @Override
+    public String getMessage() {
+        return message;
+    }
+
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2016-2019 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.semantics.jena.client;
+
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.marklogic.semantics.jena.MarkLogicFlushException;
+import com.marklogic.semantics.jena.MarkLogicJenaException;
+
+/**
+ * Sends full buffers to MarkLogic on background threads.  Each thread is
+ * a lane with its own bounded queue; a buffer is split by graph and each
+ * graph always goes to the same lane, so the adds and deletes for one
+ * graph reach the server in the order they were handed off.  Callers
+ * block only while a lane already has the configured number of buffers
+ * in flight.  A failed flush is not retried: its triples are counted
+ * as lost, and every call of {@link #checkFailure()} or {@link #await()}
+ * fails until {@link #clearFailure()}.
+ */
+class BufferFlusher {
+
+    protected final static int DEFAULT_MAX_IN_FLIGHT = 2;
+
+    private static Logger log = LoggerFactory.getLogger(BufferFlusher.class);
+
+    private ThreadPoolExecutor[] lanes;
+    private int[] inFlight;
+    private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+    private Exception failure;
+    private long lostTriples;
+    private final AtomicLong sequence = new AtomicLong();
+
+    BufferFlusher() {
+        startLanes(1);
+    }
+
+    private void startLanes(int threads) {
+        this.lanes = new ThreadPoolExecutor[threads];
+        this.inFlight = new int[threads];
+        for (int i = 0; i < threads; i++) {
+            String name = "marklogic-jena-flush-" + i;
+            lanes[i] = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(), r -> {
+                        Thread thread = new Thread(r, name);
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+            lanes[i].allowCoreThreadTimeOut(true);
+        }
+    }
+
+    /**
+     * Changes the number of lanes, after waiting for everything in
+     * flight so that no graph's batches are reordered.
+     * @param threads The number of concurrent flush requests.
+     */
+    synchronized void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least one flush thread is required");
+        }
+        await();
+        shutdown();
+        startLanes(threads);
+    }
+
+    synchronized int getThreads() {
+        return lanes.length;
+    }
+
+    synchronized void setMaxInFlight(int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("At least one buffer must be allowed in flight");
+        }
+        this.maxInFlight = maxInFlight;
+        notifyAll();
+    }
+
+    synchronized int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * Splits a buffer by lane and queues each part, waiting first on any
+     * lane that already has too many parts in flight.
+     * @param batch The buffer to send.
+     * @param serial Send everything on the first lane, as a transaction requires.
+     * @param block Whether to wait for a full lane; if false and a lane
+     *              is full, nothing is queued.
+     * @param flush Sends one part; also given the number of parts.
+     * @return true if the buffer was queued.
+     */
+    synchronized boolean submit(TripleBuffer.TriplesHashMap batch, boolean serial,
+            boolean block, BiConsumer<TripleBuffer.TriplesHashMap, Integer> flush) {
+        TripleBuffer.TriplesHashMap[] parts = batch.partition(serial ? 1 : lanes.length);
+        int partCount = (int) Arrays.stream(parts).filter(part -> !part.isEmpty()).count();
+        for (int lane = 0; lane < parts.length && !block; lane++) {
+            if (!parts[lane].isEmpty() && inFlight[lane] >= maxInFlight) {
+                return false;
+            }
+        }
+        for (int lane = 0; lane < parts.length; lane++) {
+            TripleBuffer.TriplesHashMap part = parts[lane];
+            if (part.isEmpty()) {
+                continue;
+            }
+            while (inFlight[lane] >= maxInFlight) {
+                waitForFlush();
+            }
+            inFlight[lane]++;
+            int[] counts = inFlight;
+            int index = lane;
+            lanes[lane].execute(() -> {
+                try {
+                    flush.accept(part, partCount);
+                } catch (Exception e) {
+                    log.error("Background flush of " + part.triplesCount() + " buffered triples failed", e);
+                    failed(e, part.triplesCount());
+                } finally {
+                    completed(counts, index);
+                }
+            });
+        }
+        return true;
+    }
+
+    /**
+     * Numbers buffers in the order they are handed off, across the write
+     * and delete buffers, so pending changes can be replayed in order.
+     */
+    long nextSequence() {
+        return sequence.incrementAndGet();
+    }
+
+    /**
+     * Waits until every buffer handed off so far has been sent.
+     */
+    synchronized void await() {
+        while (Arrays.stream(inFlight).anyMatch(n -> n > 0)) {
+            waitForFlush();
+        }
+        checkFailure();
+    }
+
+    /**
+     * Throws while an earlier background flush has failed.  The first
+     * failure is the cause, and any later ones are suppressed by it.
+     */
+    synchronized void checkFailure() {
+        if (failure != null) {
+            throw new MarkLogicFlushException("Flushing buffered triples to MarkLogic failed; "
+                    + lostTriples + " triples were not sent", failure, lostTriples);
+        }
+    }
+
+    /**
+     * Forgets the failures of earlier flushes, and the triples they lost.
+     */
+    synchronized void clearFailure() {
+        failure = null;
+        lostTriples = 0;
+    }
+
+    synchronized void shutdown() {
+        for (ThreadPoolExecutor lane : lanes) {
+            lane.shutdown();
+        }
+    }
+
+    private synchronized void failed(Exception e, long triples) {
+        if (failure == null) {
+            failure = e;
+        } else {
+            failure.addSuppressed(e);
+        }
+        lostTriples += triples;
+    }
+
+    private synchronized void completed(int[] counts, int lane) {
+        counts[lane]--;
+        notifyAll();
+    }
+
+    private void waitForFlush() {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MarkLogicJenaException("Interrupted while waiting for buffered triples to flush", e);
+        }
+    }
+}
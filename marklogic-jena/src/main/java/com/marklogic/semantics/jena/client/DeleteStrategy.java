@@ -0,0 +1,40 @@
+/*
+ * Copyright 2016-2019 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.semantics.jena.client;
+
+/**
+ * The ways in which {@link TriplesDeleteBuffer} can send a batch of
+ * buffered retractions to MarkLogic.  There is no graph store variant:
+ * the graph store protocol can only delete or replace whole graphs,
+ * not individual triples.
+ */
+public enum DeleteStrategy {
+
+    /**
+     * One SPARQL DELETE DATA request per flush, with a separate pattern
+     * and four bound variables for each triple.
+     */
+    DELETE_DATA,
+
+    /**
+     * One SPARQL request per flush with a single
+     * <code>GRAPH ?g { ?s ?p ?o }</code> template and the buffered
+     * quads written inline as a VALUES block.  The request is roughly
+     * half the size, has no bindings to resolve, and the server plans
+     * one pattern however large the batch.
+     */
+    VALUES
+}
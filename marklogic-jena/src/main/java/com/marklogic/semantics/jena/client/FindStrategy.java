@@ -0,0 +1,37 @@
+/*
+ * Copyright 2016-2019 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.semantics.jena.client;
+
+/**
+ * The ways in which {@link com.marklogic.semantics.jena.MarkLogicDatasetGraph}
+ * fetches the quads matching a find pattern.
+ */
+public enum FindStrategy {
+
+    /**
+     * SELECT ?s ?p ?o, with the results returned as SPARQL JSON.
+     */
+    SELECT,
+
+    /**
+     * CONSTRUCT { ?s ?p ?o }, with the triples returned as N-Triples
+     * and parsed as they arrive.  Each term is written once, without
+     * the per-term JSON objects, so wide scans move fewer bytes and
+     * parse faster.  Standard CONSTRUCT cannot return quads, so finds
+     * across all named graphs still use SELECT.
+     */
+    CONSTRUCT
+}
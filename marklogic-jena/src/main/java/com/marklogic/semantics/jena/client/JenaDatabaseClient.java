@@ -16,11 +16,18 @@
 package com.marklogic.semantics.jena.client;
 
 import java.util.Iterator;
-import java.util.Timer;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.jena.graph.Graph;
 import org.apache.jena.graph.Node;
-import org.apache.jena.graph.Triple;
 import org.apache.jena.query.ReadWrite;
 import org.apache.jena.query.TxnType;
 import org.apache.jena.riot.Lang;
@@ -28,6 +35,7 @@ import org.apache.jena.riot.RDFDataMgr;
 import org.apache.jena.riot.RDFWriterRegistry;
 import org.apache.jena.riot.WriterGraphRIOT;
 import org.apache.jena.riot.RDFFormat;
+import org.apache.jena.sparql.core.Quad;
 import org.apache.jena.sparql.graph.GraphFactory;
 import org.apache.jena.update.Update;
 import org.apache.jena.update.UpdateRequest;
@@ -39,6 +47,7 @@ import com.marklogic.client.ResourceNotFoundException;
 import com.marklogic.client.Transaction;
 import com.marklogic.client.io.InputStreamHandle;
 import com.marklogic.client.io.OutputStreamHandle;
+import com.marklogic.client.io.OutputStreamSender;
 import com.marklogic.client.semantics.GraphManager;
 import com.marklogic.client.semantics.GraphPermissions;
 import com.marklogic.client.semantics.RDFMimeTypes;
@@ -60,11 +69,24 @@ public class JenaDatabaseClient {
 
     private GraphManager graphManager;
     private SPARQLQueryManager sparqlQueryManager;
+    // one manager per concurrent paged select; see executeSelect
+    private final Queue<SPARQLQueryManager> pagingQueryManagers = new ConcurrentLinkedQueue<>();
     private TriplesWriteBuffer writeBuffer;
     private TriplesDeleteBuffer deleteBuffer;
     private DatabaseClient client;
-    private Transaction currentTransaction;
-    private Timer timer;
+    private volatile Transaction currentTransaction;
+    private ScheduledFuture<?> writeFlushTask;
+    private ScheduledFuture<?> deleteFlushTask;
+    private static ScheduledExecutorService sharedScheduler;
+    private BufferFlusher bufferFlusher;
+    private StreamingQuadSink streamingSink;
+    // orders each add or delete against the other buffer
+    private final Object mutationLock = new Object();
+    private WriteStrategy writeStrategy = WriteStrategy.SPARQL_UPDATE;
+    private DeleteStrategy deleteStrategy = DeleteStrategy.DELETE_DATA;
+    private FindStrategy findStrategy = FindStrategy.SELECT;
+    private long findPageSize = 0;
+    private volatile boolean overlayPendingChanges = false;
     private static Logger log = LoggerFactory
             .getLogger(JenaDatabaseClient.class);
 
@@ -80,28 +102,72 @@ public class JenaDatabaseClient {
     }
 
     public JenaDatabaseClient(DatabaseClient client, boolean periodicFlush) {
+        this(client, periodicFlush, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param client
+     *            a Java Client API DatabaseClient.
+     * @param periodicFlush
+     *            whether adds and deletes are buffered and flushed on a schedule.
+     *            If false, adds are streamed to MarkLogic as they arrive over
+     *            one open request per graph, up to setFlushThreads() graphs
+     *            at once, and deletes are sent at once.
+     * @param scheduler
+     *            runs the periodic flush checks.  Pass null to use a single
+     *            daemon thread shared by every JenaDatabaseClient.  Any
+     *            ScheduledExecutorService will do, including one backed by
+     *            virtual threads.  The checks only hand full buffers to the
+     *            flush threads, so they never block on the server.
+     */
+    public JenaDatabaseClient(DatabaseClient client, boolean periodicFlush,
+            ScheduledExecutorService scheduler) {
         this.client = client;
         this.graphManager = client.newGraphManager();
         this.graphManager.setDefaultMimetype(RDFMimeTypes.NTRIPLES);
         this.sparqlQueryManager = client.newSPARQLQueryManager();
         if (periodicFlush) {
+            this.bufferFlusher = new BufferFlusher();
             this.writeBuffer = new TriplesWriteBuffer(this);
             this.deleteBuffer = new TriplesDeleteBuffer(this);
-            this.timer = new Timer();
-            timer.schedule(writeBuffer, DEFAULT_INITIAL_DELAY, DEFAULT_CACHE_MILLIS);
-            timer.schedule(deleteBuffer, DEFAULT_INITIAL_DELAY + 250, DEFAULT_CACHE_MILLIS);
+            ScheduledExecutorService ticks = scheduler != null ? scheduler : sharedScheduler();
+            this.writeFlushTask = ticks.scheduleWithFixedDelay(writeBuffer,
+                    DEFAULT_INITIAL_DELAY, DEFAULT_CACHE_MILLIS, TimeUnit.MILLISECONDS);
+            this.deleteFlushTask = ticks.scheduleWithFixedDelay(deleteBuffer,
+                    DEFAULT_INITIAL_DELAY + 250, DEFAULT_CACHE_MILLIS, TimeUnit.MILLISECONDS);
+        } else {
+            this.streamingSink = new StreamingQuadSink(this);
+        }
+    }
+
+    private static synchronized ScheduledExecutorService sharedScheduler() {
+        if (sharedScheduler == null) {
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+                Thread thread = new Thread(r, "marklogic-jena-scheduler");
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor.setRemoveOnCancelPolicy(true);
+            sharedScheduler = executor;
         }
+        return sharedScheduler;
     }
 
     /**
      * Close the connection and free resources
      */
     public void close() {
-        if (writeBuffer != null) {
-            writeBuffer.cancel();
+        if (writeFlushTask != null) {
+            writeFlushTask.cancel(false);
+            deleteFlushTask.cancel(false);
         }
-        if (timer != null) {
-            timer.cancel();
+        if (bufferFlusher != null) {
+            bufferFlusher.shutdown();
+        }
+        if (streamingSink != null) {
+            streamingSink.shutdown();
         }
         client = null;
     }
@@ -126,6 +192,280 @@ public class JenaDatabaseClient {
         return writeBuffer.cacheMillis;
     }
 
+    /**
+     * Set the number of triples the write and delete buffers hold before
+     * they are flushed to MarkLogic.
+     * @param triples The triple threshold, or zero to flush on bytes
+     *                or the timer only.
+     */
+    public void setCacheSize(long triples) {
+        writeBuffer.setCacheSize(triples);
+        deleteBuffer.setCacheSize(triples);
+    }
+
+    /**
+     * Get the number of triples at which the write buffer is flushed.
+     * With adaptive sizing this changes as flushes complete.
+     * @return The triple threshold; zero if there is none.
+     */
+    public long getCacheSize() {
+        return writeBuffer.getCacheSize();
+    }
+
+    /**
+     * Let the write and delete buffers each size their batches between
+     * minTriples and maxTriples, aiming for flushes that take about
+     * targetMillis.  Watch the result with {@link #getWriteBuffer()} and
+     * {@link #getDeleteBuffer()}.  Calling {@link #setCacheSize(long)}
+     * returns to a fixed size.
+     * @param minTriples The smallest batch size.
+     * @param maxTriples The largest batch size.
+     * @param targetMillis The flush latency to aim for, in milliseconds.
+     */
+    public void setAdaptiveCacheSize(long minTriples, long maxTriples, long targetMillis) {
+        writeBuffer.setAdaptiveCacheSize(minTriples, maxTriples, targetMillis);
+        deleteBuffer.setAdaptiveCacheSize(minTriples, maxTriples, targetMillis);
+    }
+
+    /**
+     * The buffer of pending adds, for monitoring its batch size and
+     * flush latency.
+     * @return The write buffer, or null without periodic flush.
+     */
+    public TriplesWriteBuffer getWriteBuffer() {
+        return writeBuffer;
+    }
+
+    /**
+     * The buffer of pending deletes, for monitoring its batch size and
+     * flush latency.
+     * @return The delete buffer, or null without periodic flush.
+     */
+    public TriplesDeleteBuffer getDeleteBuffer() {
+        return deleteBuffer;
+    }
+
+    /**
+     * Set the estimated size, in bytes of N-Triples, that the write and
+     * delete buffers hold before they are flushed to MarkLogic.  Use this
+     * to bound memory when triples carry large literals.
+     * @param bytes The byte threshold, or zero (the default) for no limit.
+     */
+    public void setCacheBytes(long bytes) {
+        writeBuffer.setCacheBytes(bytes);
+        deleteBuffer.setCacheBytes(bytes);
+    }
+
+    /**
+     * Get the estimated size in bytes at which the buffers are flushed.
+     * @return The byte threshold; zero if there is none.
+     */
+    public long getCacheBytes() {
+        return writeBuffer.cacheBytes;
+    }
+
+    /**
+     * Set how many full buffers may be waiting on or sending to MarkLogic
+     * at once on each flush thread.  Threads that add or delete quads only
+     * block on the server once this many buffers are in flight.
+     * @param maxInFlight The number of buffers that may be in flight per
+     *                    flush thread; at least one.
+     */
+    public void setMaxBuffersInFlight(int maxInFlight) {
+        bufferFlusher.setMaxInFlight(maxInFlight);
+    }
+
+    /**
+     * Get the number of full buffers that may be in flight at once.
+     * @return The current limit on buffers in flight.
+     */
+    public int getMaxBuffersInFlight() {
+        return bufferFlusher.getMaxInFlight();
+    }
+
+    /**
+     * Set the number of concurrent requests used to flush the write and
+     * delete buffers.  Each buffer is split by graph, and a given graph is
+     * always sent by the same thread, so changes to one graph keep their
+     * order.  Inside a transaction all flushes use a single thread.
+     * Waits for any buffers in flight before taking effect.
+     * Without periodic flushing, this is instead the number of graphs
+     * that may have a streaming request open at once.
+     * @param threads The number of flush threads; at least one.
+     */
+    public void setFlushThreads(int threads) {
+        if (streamingSink != null) {
+            streamingSink.setMaxStreams(threads);
+        } else {
+            bufferFlusher.setThreads(threads);
+        }
+    }
+
+    /**
+     * Get the number of concurrent requests used to flush the buffers.
+     * @return The number of flush threads.
+     */
+    public int getFlushThreads() {
+        return streamingSink != null ? streamingSink.getMaxStreams() : bufferFlusher.getThreads();
+    }
+
+    /**
+     * Lets writes continue after a background flush of the periodic
+     * buffers has failed.  Until then, every write and sync throws a
+     * {@link com.marklogic.semantics.jena.MarkLogicFlushException} that
+     * counts the triples lost; they are not retried.
+     */
+    public void clearFlushFailure() {
+        if (bufferFlusher != null) {
+            bufferFlusher.clearFailure();
+        }
+    }
+
+    BufferFlusher getBufferFlusher() {
+        return bufferFlusher;
+    }
+
+    /**
+     * Choose how buffered triples are sent to MarkLogic when the write
+     * buffer flushes.  {@link WriteStrategy#GRAPH_STORE} streams each graph
+     * as N-Triples and is much cheaper for bulk loads;
+     * {@link WriteStrategy#SPARQL_UPDATE}, the default, sends one
+     * INSERT DATA that is atomic across all buffered graphs.
+     * @param writeStrategy The strategy to use for subsequent flushes.
+     */
+    public void setWriteStrategy(WriteStrategy writeStrategy) {
+        this.writeStrategy = writeStrategy;
+    }
+
+    /**
+     * Get the strategy used to flush the write buffer.
+     * @return The current write strategy.
+     */
+    public WriteStrategy getWriteStrategy() {
+        return writeStrategy;
+    }
+
+    /**
+     * Choose how buffered deletes are sent to MarkLogic when the delete
+     * buffer flushes.  {@link DeleteStrategy#VALUES} sends one compact
+     * DELETE ... WHERE { VALUES ... } and is the better choice for bulk
+     * retractions; {@link DeleteStrategy#DELETE_DATA}, the default, binds
+     * each triple separately.
+     * @param deleteStrategy The strategy to use for subsequent flushes.
+     */
+    public void setDeleteStrategy(DeleteStrategy deleteStrategy) {
+        this.deleteStrategy = deleteStrategy;
+    }
+
+    /**
+     * Get the strategy used to flush the delete buffer.
+     * @return The current delete strategy.
+     */
+    public DeleteStrategy getDeleteStrategy() {
+        return deleteStrategy;
+    }
+
+    /**
+     * Choose how find() fetches matching quads from MarkLogic.
+     * {@link FindStrategy#CONSTRUCT} returns N-Triples and is cheaper for
+     * large scans of the default graph or one named graph;
+     * {@link FindStrategy#SELECT}, the default, returns SPARQL JSON.
+     * @param findStrategy The strategy to use for subsequent finds.
+     */
+    public void setFindStrategy(FindStrategy findStrategy) {
+        this.findStrategy = findStrategy;
+    }
+
+    /**
+     * Get the strategy used by find().
+     * @return The current find strategy.
+     */
+    public FindStrategy getFindStrategy() {
+        return findStrategy;
+    }
+
+    /**
+     * Have find() fetch SELECT results in ordered pages of this many
+     * quads, fetching each page in the background while the previous
+     * one is consumed.  Paging keeps full scans of a large database
+     * from timing out on the server, at the cost of an ORDER BY.  It
+     * applies to the {@link FindStrategy#SELECT} transport.
+     * @param quads The page size, or zero, the default, for one
+     *              unbounded request.
+     */
+    public void setFindPageSize(long quads) {
+        if (quads < 0) {
+            throw new IllegalArgumentException("Page size cannot be negative");
+        }
+        this.findPageSize = quads;
+    }
+
+    /**
+     * Get the page size used by find().
+     * @return The page size, or zero if finds are not paged.
+     */
+    public long getFindPageSize() {
+        return findPageSize;
+    }
+
+    /**
+     * Have find() merge the adds and deletes that are still buffered into
+     * its results on the client, instead of flushing both buffers before
+     * every read.  A read after a small write then costs one request.
+     * SPARQL queries and listing graphs still flush first.  Has no
+     * effect without periodic flushing.
+     * @param overlay true to overlay pending changes; false, the
+     *                default, to flush before each find.
+     */
+    public void setOverlayPendingChanges(boolean overlay) {
+        this.overlayPendingChanges = overlay;
+    }
+
+    /**
+     * @return true if find() overlays buffered changes rather than
+     *         flushing them first.
+     */
+    public boolean isOverlayPendingChanges() {
+        return overlayPendingChanges && writeBuffer != null;
+    }
+
+    /**
+     * The buffered changes, not yet on the server, to quads that match a
+     * pattern.  Each quad maps to true if its latest change is an add and
+     * false if it is a delete.  Take this before querying the server:
+     * changes that reach the server afterwards are still included.
+     * @param g Graph node; null for the default graph, Node.ANY for all.
+     * @param s Subject node, or Node.ANY.
+     * @param p Property node, or Node.ANY.
+     * @param o Object node, or Node.ANY.
+     * @return The pending changes, in the order they were made.
+     */
+    public Map<Quad, Boolean> pendingChanges(Node g, Node s, Node p, Node o) {
+        Map<Quad, Boolean> changes = new LinkedHashMap<>();
+        if (writeBuffer == null) {
+            return changes;
+        }
+        Node graph = g == null ? TripleBuffer.DEFAULT_GRAPH_NODE : g;
+        List<TripleBuffer.TriplesHashMap> adds;
+        List<TripleBuffer.TriplesHashMap> deletes;
+        synchronized (mutationLock) {
+            adds = writeBuffer.pending(graph, s, p, o);
+            deletes = deleteBuffer.pending(graph, s, p, o);
+        }
+        // both lists are in hand-off order, each ending with its active
+        // buffer; the two active buffers never share a quad
+        int a = 0;
+        int d = 0;
+        while (a < adds.size() || d < deletes.size()) {
+            boolean add = d == deletes.size()
+                    || a < adds.size() && adds.get(a).sequence <= deletes.get(d).sequence;
+            TripleBuffer.TriplesHashMap batch = add ? adds.get(a++) : deletes.get(d++);
+            batch.forEach((graphNode, triples) -> triples.find().forEachRemaining(
+                    t -> changes.put(new Quad(graphNode, t), add)));
+        }
+        return changes;
+    }
+
     /**
      * Create a new {@link com.marklogic.client.semantics.SPARQLQueryDefinition}
      * from Update. You can use the resulting object to configure
@@ -154,9 +494,7 @@ public class JenaDatabaseClient {
         return this.sparqlQueryManager.newQueryDefinition(queryString);
     }
 
-    // synchronization needed because of setting of page length
-    public synchronized void executeUpdate(SPARQLQueryDefinition qdef) {
-        this.sparqlQueryManager.clearPageLength();
+    public void executeUpdate(SPARQLQueryDefinition qdef) {
         this.sparqlQueryManager.executeUpdate(qdef, currentTransaction);
     }
 
@@ -176,21 +514,39 @@ public class JenaDatabaseClient {
                 currentTransaction);
     }
 
-    // synchronization needed because of setting of page length
-    public synchronized InputStreamHandle executeSelect(SPARQLQueryDefinition qdef,
+    /**
+     * Runs a SELECT, optionally for one page of results.  Selects run
+     * concurrently: the page length is state of a SPARQLQueryManager, so
+     * a paged select borrows a manager of its own from a pool, and
+     * unpaged selects use the shared manager, whose page length is never
+     * set.
+     * @param qdef The query.
+     * @param handle Receives the results.
+     * @param offset The first result, counting from 1, or null.
+     * @param limit The page length, or null for all results.
+     * @return The handle.
+     */
+    public InputStreamHandle executeSelect(SPARQLQueryDefinition qdef,
             InputStreamHandle handle, Long offset, Long limit) {
-        if (limit == null) {
-            this.sparqlQueryManager.clearPageLength();
-        } else {
-            this.sparqlQueryManager.setPageLength(limit);
-        }
-        if (offset != null) {
-            return this.sparqlQueryManager.executeSelect(qdef, handle, offset,
-                    currentTransaction);
-        } else {
+        if (offset == null && limit == null) {
             return this.sparqlQueryManager.executeSelect(qdef, handle,
                     currentTransaction);
         }
+        SPARQLQueryManager manager = pagingQueryManagers.poll();
+        if (manager == null) {
+            manager = client.newSPARQLQueryManager();
+        }
+        try {
+            if (limit == null) {
+                manager.clearPageLength();
+            } else {
+                manager.setPageLength(limit);
+            }
+            return manager.executeSelect(qdef, handle,
+                    offset == null ? 1 : offset, currentTransaction);
+        } finally {
+            pagingQueryManagers.offer(manager);
+        }
     }
 
     public InputStreamHandle executeSelect(SPARQLQueryDefinition qdef,
@@ -202,6 +558,14 @@ public class JenaDatabaseClient {
         return this.graphManager.listGraphUris();
     }
 
+    void mergeGraph(String uri, OutputStreamSender sender, Transaction transaction) {
+        this.graphManager.merge(uri, new OutputStreamHandle(sender), transaction);
+    }
+
+    Transaction getCurrentTransaction() {
+        return currentTransaction;
+    }
+
     public void mergeGraph(String uri, Graph graph) {
         WriterGraphRIOT writer = RDFWriterRegistry.getWriterGraphFactory(RDFFormat.NTRIPLES).create(RDFFormat.NTRIPLES);
         OutputStreamRIOTSender sender = new OutputStreamRIOTSender(writer);
@@ -265,7 +629,12 @@ public class JenaDatabaseClient {
     /**
      * If timer is turned on (periodicFlush = true in constructor) 
      * this method puts a quad into the cache which is periodically sent to MarkLogic
-     * otherwise it sends the quad directly
+     * otherwise it streams the quad over the open request for its graph.
+     *
+     * The write and delete buffers together act as one mutation log: a
+     * quad is pending in at most one of them, and the latest operation on
+     * it wins.  An add cancels a pending delete of the same quad, so the
+     * two buffers can be flushed in either order.
      * 
      * @param g
      *            Graph node.
@@ -278,12 +647,12 @@ public class JenaDatabaseClient {
      */
     public void sinkQuad(Node g, Node s, Node p, Node o) {
         if (writeBuffer != null) {
-            writeBuffer.add(g, s, p, o);
+            synchronized (mutationLock) {
+                deleteBuffer.cancel(g, s, p, o);
+                writeBuffer.add(g, s, p, o);
+            }
         } else {
-            Graph graph = GraphFactory.createDefaultGraph();
-            graph.add(Triple.create(s,p,o));
-            mergeGraph(g.getURI(), graph);
-            return;
+            streamingSink.add(g, s, p, o);
         }
     }
 
@@ -294,6 +663,8 @@ public class JenaDatabaseClient {
     public void syncAdds() {
         if (writeBuffer != null) {
             writeBuffer.forceRun();
+        } else {
+            streamingSink.closeAll();
         }
     }
 
@@ -306,14 +677,44 @@ public class JenaDatabaseClient {
         }
     }
 
+    /**
+     * Buffers the delete of a quad.  A pending add of the same quad is
+     * cancelled, and the delete is still sent in case the quad is
+     * already on the server.  Without periodic flushing the graph's
+     * open stream is finished and the delete is sent at once.
+     *
+     * @param g
+     *            Graph node.
+     * @param s
+     *            Subject node
+     * @param p
+     *            Property node.
+     * @param o
+     *            Object Node.
+     */
     public void sinkDelete(Node g, Node s, Node p, Node o) {
         if (deleteBuffer != null) {
-            deleteBuffer.add(g, s, p, o);
+            synchronized (mutationLock) {
+                writeBuffer.cancel(g, s, p, o);
+                deleteBuffer.add(g, s, p, o);
+            }
         } else {
-            // FIXME  no delete buffer.
+            // the graph's open stream may hold an earlier add of this quad
+            streamingSink.close(g);
+            deleteQuad(g, s, p, o);
         }
     }
 
+    private void deleteQuad(Node g, Node s, Node p, Node o) {
+        SPARQLQueryDefinition qdef = newQueryDefinition(
+                "DELETE DATA { GRAPH ?g { ?s ?p ?o } }");
+        qdef.withBinding("g", g == null ? MarkLogicDatasetGraph.DEFAULT_GRAPH_URI : g.getURI());
+        qdef.withBinding("s", s.getURI());
+        qdef.withBinding("p", p.getURI());
+        MarkLogicDatasetGraph.bindObject(qdef, "o", o);
+        executeUpdate(qdef);
+    }
+
     private void checkCurrentTransaction() {
         if (this.currentTransaction == null) {
             throw new MarkLogicTransactionException("No open transaction");
@@ -0,0 +1,302 @@
+/*
+ * Copyright 2016-2019 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.semantics.jena.client;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+
+/**
+ * A small thread-safe cache that drops its least recently used entries
+ * once full, by count or optionally by total weight, and treats entries
+ * older than a time to live as absent.
+ * Callers invalidate entries by predicate over the keys, which scans
+ * the cache, or in constant time by group: each key may belong to a
+ * group, such as a graph, and invalidating a group stamps it so that
+ * its entries, and those of keys in no group, are treated as absent
+ * from then on.  Stamps are kept for the groups holding entries and
+ * for as many more recently invalidated groups; older ones merge into a
+ * single stamp, so a put computed before it may be turned away.
+ * To avoid storing a value computed before an
+ * invalidation, read {@link #version()} before computing and pass it to
+ * {@link #put(Object, Object, long)}.
+ *
+ * @param <K> The key type.
+ * @param <V> The value type, which should be immutable.
+ */
+public class LRUCache<K, V> {
+
+    private static class Entry<V> {
+        final V value;
+        final Object group;
+        final long weight;
+        final long version;
+        final long created = System.nanoTime();
+
+        Entry(V value, Object group, long weight, long version) {
+            this.value = value;
+            this.group = group;
+            this.weight = weight;
+            this.version = version;
+        }
+    }
+
+    private final int maxEntries;
+    private final long maxWeight;
+    private final ToLongFunction<? super V> weigher;
+    private final Function<? super K, ?> groupOf;
+    private final long ttlNanos;
+    private final LinkedHashMap<K, Entry<V>> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long weight = 0;
+    private long version = 0;
+    // the version at which each group, any group, everything, and any
+    // key by predicate was last invalidated
+    private final Map<Object, Long> groupVersions = new HashMap<>();
+    // entries held per group.  The stamp of a group whose last entry
+    // goes moves to the recent stamps, which only puts still check,
+    // and from there into droppedGroupVersion
+    private final Map<Object, Integer> groupEntries = new HashMap<>();
+    private final LinkedHashMap<Object, Long> recentStamps = new LinkedHashMap<>();
+    private long droppedGroupVersion = 0;
+    private long anyGroupVersion = 0;
+    private long allVersion = 0;
+    private long predicateVersion = 0;
+
+    /**
+     * @param maxEntries The number of entries to keep.
+     * @param ttlMillis How long an entry stays valid, or zero for no limit.
+     */
+    public LRUCache(int maxEntries, long ttlMillis) {
+        this(maxEntries, ttlMillis, key -> null);
+    }
+
+    /**
+     * @param maxEntries The number of entries to keep.
+     * @param ttlMillis How long an entry stays valid, or zero for no limit.
+     * @param groupOf The group of a key, or null for a key that any
+     *                group's invalidation drops.
+     */
+    public LRUCache(int maxEntries, long ttlMillis, Function<? super K, ?> groupOf) {
+        this(maxEntries, 0, ttlMillis, value -> 0, groupOf);
+    }
+
+    /**
+     * @param maxEntries The number of entries to keep.
+     * @param maxWeight The largest total weight to keep, or zero for no limit.
+     * @param ttlMillis How long an entry stays valid, or zero for no limit.
+     * @param weigher The weight of a value, such as its size in bytes.
+     */
+    public LRUCache(int maxEntries, long maxWeight, long ttlMillis,
+            ToLongFunction<? super V> weigher) {
+        this(maxEntries, maxWeight, ttlMillis, weigher, key -> null);
+    }
+
+    private LRUCache(int maxEntries, long maxWeight, long ttlMillis,
+            ToLongFunction<? super V> weigher, Function<? super K, ?> groupOf) {
+        if (maxEntries < 1 || maxWeight < 0 || ttlMillis < 0) {
+            throw new IllegalArgumentException("A cache needs at least one entry and non-negative limits");
+        }
+        this.maxEntries = maxEntries;
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+        this.groupOf = groupOf;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    }
+
+    /**
+     * @return The cached value, or null if there is none or it has expired.
+     */
+    public synchronized V get(K key) {
+        Entry<V> entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (!current(entry)) {
+            remove(key);
+            return null;
+        }
+        return entry.value;
+    }
+
+    /*
+     * Whether an entry is neither expired nor from before an
+     * invalidation of its group.
+     */
+    private boolean current(Entry<V> entry) {
+        if (ttlNanos > 0 && System.nanoTime() - entry.created > ttlNanos) {
+            return false;
+        }
+        return entry.version >= allVersion && entry.version >= (entry.group == null
+                ? anyGroupVersion : groupVersions.getOrDefault(entry.group, 0L));
+    }
+
+    /**
+     * @return A counter that moves on with every invalidation.
+     */
+    public synchronized long version() {
+        return version;
+    }
+
+    /**
+     * Stores a value unless the cache has been invalidated since it
+     * was computed, or the value alone weighs more than the cache holds.
+     * @param version The {@link #version()} read before computing the value.
+     * @return true if the value was stored.
+     */
+    public synchronized boolean put(K key, V value, long version) {
+        long w = weigher.applyAsLong(value);
+        Object group = groupOf.apply(key);
+        long groupVersion = group == null ? anyGroupVersion
+                : groupVersions.getOrDefault(group,
+                        recentStamps.getOrDefault(group, droppedGroupVersion));
+        if (version < predicateVersion || version < allVersion || version < groupVersion
+                || (maxWeight > 0 && w > maxWeight)) {
+            return false;
+        }
+        remove(key);
+        entries.put(key, new Entry<>(value, group, w, version));
+        weight += w;
+        if (group != null && groupEntries.merge(group, 1, Integer::sum) == 1) {
+            Long stamp = recentStamps.remove(group);
+            if (stamp != null) {
+                groupVersions.put(group, stamp);
+            }
+        }
+        Iterator<Entry<V>> eldest = entries.values().iterator();
+        while (entries.size() > maxEntries || (maxWeight > 0 && weight > maxWeight)) {
+            Entry<V> entry = eldest.next();
+            eldest.remove();
+            removed(entry);
+        }
+        return true;
+    }
+
+    /**
+     * Drops every entry whose key matches.
+     */
+    public synchronized void invalidate(Predicate<? super K> matches) {
+        predicateVersion = ++version;
+        Iterator<Map.Entry<K, Entry<V>>> all = entries.entrySet().iterator();
+        while (all.hasNext()) {
+            Map.Entry<K, Entry<V>> entry = all.next();
+            if (matches.test(entry.getKey())) {
+                all.remove();
+                removed(entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Drops, in constant time, the entries whose keys are in a group and
+     * those whose keys are in none.  They stay in the cache, unseen, until
+     * they are looked up or evicted.
+     * @param group The group, or null for every entry.
+     */
+    public synchronized void invalidateGroup(Object group) {
+        version++;
+        if (group == null) {
+            allVersion = version;
+            groupVersions.clear();
+            recentStamps.clear();
+        } else {
+            if (groupEntries.containsKey(group)) {
+                groupVersions.put(group, version);
+            } else {
+                recentStamp(group, version);
+            }
+            anyGroupVersion = version;
+        }
+    }
+
+    /**
+     * Drops every entry.
+     */
+    public synchronized void clear() {
+        allVersion = ++version;
+        entries.clear();
+        weight = 0;
+        groupEntries.clear();
+        groupVersions.clear();
+        recentStamps.clear();
+    }
+
+    /**
+     * @return The total weight of the entries held.
+     */
+    public synchronized long weight() {
+        return weight;
+    }
+
+    /**
+     * @return The number of group stamps kept.  Package-private for tests.
+     */
+    synchronized int groupStamps() {
+        return groupVersions.size() + recentStamps.size();
+    }
+
+    private void remove(K key) {
+        Entry<V> entry = entries.remove(key);
+        if (entry != null) {
+            removed(entry);
+        }
+    }
+
+    /*
+     * Accounts for an entry that has left the map.
+     */
+    private void removed(Entry<V> entry) {
+        weight -= entry.weight;
+        if (entry.group != null && groupEntries.merge(entry.group, -1, Integer::sum) == 0) {
+            groupEntries.remove(entry.group);
+            Long stamp = groupVersions.remove(entry.group);
+            if (stamp != null) {
+                recentStamp(entry.group, stamp);
+            }
+        }
+    }
+
+    /*
+     * Keeps the stamp of a group with no entries, merging the eldest
+     * such stamp into droppedGroupVersion once there are too many.
+     */
+    private void recentStamp(Object group, long stamp) {
+        recentStamps.remove(group);
+        recentStamps.put(group, stamp);
+        if (recentStamps.size() > maxEntries) {
+            Iterator<Long> eldest = recentStamps.values().iterator();
+            droppedGroupVersion = Math.max(droppedGroupVersion, eldest.next());
+            eldest.remove();
+        }
+    }
+
+    /**
+     * @return The number of current entries.  This scans the cache.
+     */
+    public synchronized int size() {
+        int size = 0;
+        for (Map.Entry<K, Entry<V>> entry : entries.entrySet()) {
+            if (current(entry.getValue())) {
+                size++;
+            }
+        }
+        return size;
+    }
+}
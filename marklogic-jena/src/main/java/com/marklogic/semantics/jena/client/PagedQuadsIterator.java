@@ -0,0 +1,169 @@
+/*
+ * Copyright 2016-2019 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.semantics.jena.client;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.jena.atlas.iterator.IteratorCloseable;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.sparql.core.Quad;
+
+import com.marklogic.client.io.InputStreamHandle;
+import com.marklogic.client.semantics.SPARQLQueryDefinition;
+import com.marklogic.semantics.jena.MarkLogicJenaException;
+
+/**
+ * Returns the quads of an ordered SELECT ?g ?s ?p ?o query a page at a
+ * time.  While the caller works through one page, the next is fetched on
+ * a background thread, so at most two pages are held in memory and
+ * network time overlaps with processing.  The query must have an ORDER
+ * BY, or pages may overlap or skip rows.  A caller that stops early
+ * should close the iterator, which cancels the page being fetched.
+ */
+public class PagedQuadsIterator implements IteratorCloseable<Quad> {
+
+    private static ExecutorService prefetcher;
+
+    private final JenaDatabaseClient client;
+    private final SPARQLQueryDefinition qdef;
+    private final Node[] fixed;
+    private final long pageSize;
+    private long nextStart = 1;
+    private Iterator<Quad> page;
+    private Future<List<Quad>> nextPage;
+
+    /**
+     * Fetches the first page and starts on the second.
+     * @param client The client to query with.
+     * @param qdef An ordered SELECT of ?s ?p ?o, and optionally ?g.
+     * @param graphName The graph for rows without ?g, or null.
+     * @param pageSize The number of rows in each request.
+     */
+    public PagedQuadsIterator(JenaDatabaseClient client, SPARQLQueryDefinition qdef,
+            String graphName, long pageSize) {
+        this(client, qdef, new Node[] {
+                graphName == null ? null : NodeFactory.createURI(graphName),
+                null, null, null }, pageSize);
+    }
+
+    /**
+     * Fetches the first page and starts on the second.
+     * @param client The client to query with.
+     * @param qdef An ordered SELECT of some of ?g ?s ?p ?o.
+     * @param fixed The graph, subject, predicate and object of every
+     *              quad, or null for a position read from the results.
+     * @param pageSize The number of rows in each request.
+     */
+    public PagedQuadsIterator(JenaDatabaseClient client, SPARQLQueryDefinition qdef,
+            Node[] fixed, long pageSize) {
+        this.client = client;
+        this.qdef = qdef;
+        this.fixed = fixed;
+        this.pageSize = pageSize;
+        advance(fetch(nextStart));
+    }
+
+    private static synchronized ExecutorService prefetcher() {
+        if (prefetcher == null) {
+            prefetcher = Executors.newCachedThreadPool(r -> {
+                Thread thread = new Thread(r, "marklogic-jena-prefetch");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return prefetcher;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!page.hasNext()) {
+            if (nextPage == null) {
+                return false;
+            }
+            try {
+                advance(nextPage.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new MarkLogicJenaException("Interrupted while fetching the next page of quads", e);
+            } catch (ExecutionException e) {
+                throw new MarkLogicJenaException("Fetching the next page of quads failed", e);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public Quad next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return page.next();
+    }
+
+    /**
+     * Drops the current page and cancels the fetch of the next one.
+     */
+    @Override
+    public void close() {
+        if (nextPage != null) {
+            nextPage.cancel(true);
+            nextPage = null;
+        }
+        page = Collections.emptyIterator();
+    }
+
+    /*
+     * Makes a fetched page current and, unless it was short, starts on
+     * the one after it.
+     */
+    private void advance(List<Quad> quads) {
+        page = quads.iterator();
+        nextStart += quads.size();
+        if (quads.size() < pageSize) {
+            nextPage = null;
+        } else {
+            long start = nextStart;
+            nextPage = prefetcher().submit(() -> fetch(start));
+        }
+    }
+
+    private List<Quad> fetch(long start) {
+        InputStreamHandle results = client.executeSelect(qdef, new InputStreamHandle(),
+                start, pageSize);
+        QuadsIterator quads = new QuadsIterator(fixed, results.get());
+        List<Quad> page = new ArrayList<>();
+        try {
+            while (quads.hasNext()) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new MarkLogicJenaException("Interrupted while fetching a page of quads");
+                }
+                page.add(quads.next());
+            }
+        } finally {
+            quads.close();
+        }
+        return page;
+    }
+}
@@ -16,58 +16,76 @@
 package com.marklogic.semantics.jena.client;
 
 import java.io.InputStream;
-import java.util.Iterator;
+import java.util.NoSuchElementException;
 
+import org.apache.jena.atlas.iterator.IteratorCloseable;
 import org.apache.jena.graph.Node;
 import org.apache.jena.graph.NodeFactory;
-import org.apache.jena.query.QuerySolution;
-import org.apache.jena.query.ResultSet;
-import org.apache.jena.query.ResultSetFactory;
 import org.apache.jena.sparql.core.Quad;
 
 /**
  * Returns quads as elements in an iterator, by processing the special purpose
- * SELECT ?g ?s ?p ?o pattern
+ * SELECT ?g ?s ?p ?o pattern.  Rows are parsed from the response stream
+ * as the iterator advances, so a large result is never held in memory.
+ * Closing the iterator before the end releases the response stream.
  */
-public class QuadsIterator implements Iterator<Quad> {
+public class QuadsIterator implements IteratorCloseable<Quad> {
 
-    private ResultSet results;
-    private String graphName = null;
+    private static final int G = 0, S = 1, P = 2, O = 3;
+
+    private SPARQLResultsJSONReader results;
+    private final Node[] fixed = new Node[4];
+    private Node[] row = new Node[4];
+    private boolean ready = false;
+    private boolean exhausted = false;
 
     public QuadsIterator(InputStream inputStream) {
-        results = ResultSetFactory.fromJSON(inputStream);
+        results = new SPARQLResultsJSONReader(inputStream, "g", "s", "p", "o");
     }
 
     public QuadsIterator(String graphName, InputStream inputStream) {
-        this.graphName = graphName;
-        results = ResultSetFactory.fromJSON(inputStream);
+        this(inputStream);
+        this.fixed[G] = NodeFactory.createURI(graphName);
+    }
+
+    /**
+     * Reads a SELECT that projects only some of ?g ?s ?p ?o, as a find
+     * with bound terms does.
+     * @param fixed The graph, subject, predicate and object of every
+     *              quad, or null for a position read from the results.
+     * @param inputStream The SPARQL JSON results.
+     */
+    public QuadsIterator(Node[] fixed, InputStream inputStream) {
+        this(inputStream);
+        System.arraycopy(fixed, 0, this.fixed, 0, this.fixed.length);
     }
 
     @Override
     public boolean hasNext() {
-        return results.hasNext();
+        if (!ready && !exhausted) {
+            ready = results.next(row);
+            exhausted = !ready;
+        }
+        return ready;
     }
 
     @Override
     public Quad next() {
-        QuerySolution solution = results.next();
-        Node s = solution.get("s").asNode();
-        Node p = solution.get("p").asNode();
-        Node o = solution.get("o").asNode();
-        Node g = null;
-        if (solution.get("g") != null) {
-            g = solution.get("g").asNode();
-        } else {
-            if (graphName != null) {
-                g = NodeFactory.createURI(graphName);
-            }
+        if (!hasNext()) {
+            throw new NoSuchElementException();
         }
-        Quad quad = new Quad(g, s, p, o);
-        return quad;
+        ready = false;
+        return new Quad(term(G), term(S), term(P), term(O));
     }
 
     @Override
-    public void remove() {
-        results.remove();
+    public void close() {
+        ready = false;
+        exhausted = true;
+        results.close();
+    }
+
+    private Node term(int i) {
+        return row[i] != null ? row[i] : fixed[i];
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2016-2019 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.semantics.jena.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.jena.datatypes.TypeMapper;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.marklogic.semantics.jena.MarkLogicJenaException;
+
+/**
+ * Reads SPARQL 1.1 JSON results one row at a time, straight from the
+ * response stream.  Each row's terms are written into a caller-supplied
+ * array, indexed by the position of their variable in the list given to
+ * the constructor; variables not in that list are skipped.  Nothing is
+ * kept between rows, so memory use does not grow with the result size.
+ * The stream is closed when the last row has been read or on
+ * {@link #close()}.
+ */
+public class SPARQLResultsJSONReader implements Closeable {
+
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
+    private final JsonParser parser;
+    private final String[] variables;
+    private boolean finished = false;
+
+    /**
+     * @param inputStream A SPARQL JSON results document.
+     * @param variables The variables to read, in the order of each row.
+     */
+    public SPARQLResultsJSONReader(InputStream inputStream, String... variables) {
+        this.variables = variables;
+        try {
+            this.parser = jsonFactory.createParser(inputStream);
+            if (!toBindings()) {
+                close();
+            }
+        } catch (IOException e) {
+            throw new MarkLogicJenaException("Could not read SPARQL results", e);
+        }
+    }
+
+    /**
+     * Reads the next row.
+     * @param row Receives the row's terms; unbound variables are set to null.
+     * @return false, with the stream closed, once there are no more rows.
+     */
+    public boolean next(Node[] row) {
+        if (finished) {
+            return false;
+        }
+        try {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                close();
+                return false;
+            }
+            for (int i = 0; i < variables.length; i++) {
+                row[i] = null;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                int index = indexOf(parser.getCurrentName());
+                parser.nextToken();
+                if (index < 0) {
+                    parser.skipChildren();
+                } else {
+                    row[index] = readTerm();
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            close();
+            throw new MarkLogicJenaException("Could not read SPARQL results", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (!finished) {
+            finished = true;
+            try {
+                parser.close();
+            } catch (IOException e) {
+                // nothing more to read from it anyway
+            }
+        }
+    }
+
+    /*
+     * Moves to the start of the results.bindings array, skipping the head
+     * and anything else in the document.
+     */
+    private boolean toBindings() throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            return false;
+        }
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            if ("results".equals(field) && parser.currentToken() == JsonToken.START_OBJECT) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String inner = parser.getCurrentName();
+                    if (parser.nextToken() == JsonToken.START_ARRAY && "bindings".equals(inner)) {
+                        return true;
+                    }
+                    parser.skipChildren();
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return false;
+    }
+
+    private int indexOf(String variable) {
+        for (int i = 0; i < variables.length; i++) {
+            if (variables[i].equals(variable)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /*
+     * Reads one { "type": ..., "value": ... } term object.
+     */
+    private Node readTerm() throws IOException {
+        String type = null;
+        String value = null;
+        String datatype = null;
+        String lang = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            switch (field) {
+            case "type":
+                type = parser.getText();
+                break;
+            case "value":
+                value = parser.getText();
+                break;
+            case "datatype":
+                datatype = parser.getText();
+                break;
+            case "xml:lang":
+                lang = parser.getText();
+                break;
+            default:
+                parser.skipChildren();
+            }
+        }
+        if (type == null || value == null) {
+            throw new MarkLogicJenaException("Malformed term in SPARQL results");
+        }
+        switch (type) {
+        case "uri":
+            return NodeFactory.createURI(value);
+        case "bnode":
+            return NodeFactory.createBlankNode(value);
+        case "literal":
+        case "typed-literal":
+            if (lang != null) {
+                return NodeFactory.createLiteral(value, lang);
+            } else if (datatype != null) {
+                return NodeFactory.createLiteral(value,
+                        TypeMapper.getInstance().getSafeTypeByName(datatype));
+            } else {
+                return NodeFactory.createLiteral(value);
+            }
+        default:
+            throw new MarkLogicJenaException("Unknown term type in SPARQL results: " + type);
+        }
+    }
+}
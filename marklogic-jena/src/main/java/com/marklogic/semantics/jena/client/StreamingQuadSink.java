@@ -0,0 +1,247 @@
+/*
+ * Copyright 2016-2019 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.semantics.jena.client;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.riot.out.NodeFmtLib;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.marklogic.client.Transaction;
+import com.marklogic.client.io.OutputStreamSender;
+import com.marklogic.semantics.jena.MarkLogicDatasetGraph;
+import com.marklogic.semantics.jena.MarkLogicJenaException;
+
+/**
+ * Write-through sink for a {@link JenaDatabaseClient} built without
+ * periodic flushing.  Each graph gets one graph store merge request that
+ * stays open, and quads are written to its body as N-Triples as they
+ * arrive.  A graph's request is finished by {@link #close(Node)} and
+ * every request by {@link #closeAll()}, which the client calls on sync,
+ * commit and delete.  Until then the quads may not be visible on the
+ * server.  A slow server blocks the writer once a graph has
+ * {@link #QUEUE_CAPACITY} lines waiting.  At most
+ * {@link #DEFAULT_MAX_STREAMS} requests, or the number set with
+ * {@link #setMaxStreams(int)}, are open at once; a quad for another
+ * graph first finishes the least recently written request.
+ */
+class StreamingQuadSink {
+
+    protected final static int QUEUE_CAPACITY = 10000;
+    protected final static int DEFAULT_MAX_STREAMS = 4;
+
+    private static Logger log = LoggerFactory.getLogger(StreamingQuadSink.class);
+
+    // marks the end of a graph's request body
+    private static final String END = new String();
+
+    private final JenaDatabaseClient client;
+    private final ThreadPoolExecutor requests;
+    // in order of last write, so the first is the one to finish
+    private final LinkedHashMap<String, GraphStream> streams = new LinkedHashMap<>(16, 0.75f, true);
+    private int maxStreams = DEFAULT_MAX_STREAMS;
+
+    StreamingQuadSink(JenaDatabaseClient client) {
+        this.client = client;
+        this.requests = new ThreadPoolExecutor(DEFAULT_MAX_STREAMS, DEFAULT_MAX_STREAMS,
+                30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+                    Thread thread = new Thread(r, "marklogic-jena-stream");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.requests.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Changes the number of graph requests that may be open at once,
+     * finishing the least recently written ones if there are more.
+     * @param max The number of open requests, and threads; at least one.
+     */
+    synchronized void setMaxStreams(int max) {
+        if (max < 1) {
+            throw new IllegalArgumentException("At least one streaming request is required");
+        }
+        finishEldest(max);
+        if (max > requests.getMaximumPoolSize()) {
+            requests.setMaximumPoolSize(max);
+            requests.setCorePoolSize(max);
+        } else {
+            requests.setCorePoolSize(max);
+            requests.setMaximumPoolSize(max);
+        }
+        this.maxStreams = max;
+    }
+
+    synchronized int getMaxStreams() {
+        return maxStreams;
+    }
+
+    synchronized int openStreams() {
+        return streams.size();
+    }
+
+    /*
+     * Finishes the least recently written requests until no more than
+     * keep are open.
+     */
+    private void finishEldest(int keep) {
+        while (streams.size() > keep) {
+            Iterator<GraphStream> eldest = streams.values().iterator();
+            GraphStream stream = eldest.next();
+            eldest.remove();
+            stream.finish();
+        }
+    }
+
+    /**
+     * Writes one quad to the open request for its graph, opening the
+     * request first if need be.
+     * @param g Graph node, or null for the default graph.
+     */
+    synchronized void add(Node g, Node s, Node p, Node o) {
+        String uri = g == null ? MarkLogicDatasetGraph.DEFAULT_GRAPH_URI : g.getURI();
+        GraphStream stream = streams.get(uri);
+        if (stream == null) {
+            finishEldest(maxStreams - 1);
+            stream = new GraphStream(uri, client.getCurrentTransaction());
+            streams.put(uri, stream);
+        }
+        stream.put(NodeFmtLib.strNT(s) + " " + NodeFmtLib.strNT(p) + " "
+                + NodeFmtLib.strNT(o) + " .\n");
+    }
+
+    /**
+     * Finishes the request for one graph and waits for the server to
+     * accept it.
+     * @param g Graph node, or null for the default graph.
+     */
+    synchronized void close(Node g) {
+        String uri = g == null ? MarkLogicDatasetGraph.DEFAULT_GRAPH_URI : g.getURI();
+        GraphStream stream = streams.remove(uri);
+        if (stream != null) {
+            stream.finish();
+        }
+    }
+
+    /**
+     * Finishes every open request and waits for the server to accept
+     * them.  The first failure is rethrown once all have finished.
+     */
+    synchronized void closeAll() {
+        MarkLogicJenaException failure = null;
+        for (GraphStream stream : streams.values()) {
+            try {
+                stream.finish();
+            } catch (MarkLogicJenaException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        streams.clear();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    synchronized void shutdown() {
+        try {
+            closeAll();
+        } finally {
+            requests.shutdown();
+        }
+    }
+
+    /*
+     * One open merge request.  The client's sender thread drains the queue
+     * into the request body until it sees END.
+     */
+    private class GraphStream implements OutputStreamSender {
+
+        private final String uri;
+        private final BlockingQueue<String> lines = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+        private final Future<?> request;
+
+        GraphStream(String uri, Transaction transaction) {
+            this.uri = uri;
+            this.request = requests.submit(() -> client.mergeGraph(uri, this, transaction));
+        }
+
+        void put(String line) {
+            try {
+                while (!lines.offer(line, 100, TimeUnit.MILLISECONDS)) {
+                    if (request.isDone()) {
+                        streams.remove(uri);
+                        finish();
+                        throw new MarkLogicJenaException("Streaming request for graph " + uri
+                                + " ended before its triples were sent");
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new MarkLogicJenaException("Interrupted while streaming triples to MarkLogic", e);
+            }
+        }
+
+        void finish() {
+            try {
+                while (!request.isDone() && !lines.offer(END, 100, TimeUnit.MILLISECONDS)) {
+                    // the request is still draining a full queue
+                }
+                request.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new MarkLogicJenaException("Interrupted while streaming triples to MarkLogic", e);
+            } catch (ExecutionException e) {
+                log.error("Streaming triples to graph " + uri + " failed", e.getCause());
+                throw new MarkLogicJenaException("Streaming triples to graph " + uri + " failed", e);
+            }
+        }
+
+        @Override
+        public void write(OutputStream out) throws IOException {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+            try {
+                for (String line = lines.take(); line != END; line = lines.take()) {
+                    writer.write(line);
+                    if (lines.isEmpty()) {
+                        // nothing else waiting, so hand what we have to the connection
+                        writer.flush();
+                    }
+                }
+                writer.flush();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while streaming triples to MarkLogic", e);
+            }
+        }
+    }
+}
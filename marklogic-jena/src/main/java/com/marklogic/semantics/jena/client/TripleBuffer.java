@@ -24,32 +24,141 @@ import com.marklogic.semantics.jena.MarkLogicDatasetGraph;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Date;
-import java.util.TimerTask;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Base class for buffer than handles deletes
- * and adds for graphs backed by MarkLogic
+ * and adds for graphs backed by MarkLogic.
+ *
+ * Quads are appended to an active buffer.  When it is full, or on a
+ * scheduled tick, the active buffer is swapped for an empty one and handed to
+ * the client's {@link BufferFlusher}, so writers do not wait on the HTTP
+ * request unless too many buffers are already in flight.
  */
-public abstract class TripleBuffer extends TimerTask {
+public abstract class TripleBuffer implements Runnable {
+
+    /*
+     * Per-graph buffers, with running totals so that checking the
+     * flush thresholds does not depend on the number of graphs.
+     */
+    static class TriplesHashMap extends ConcurrentHashMap<Node, Graph> {
+
+        private static final long serialVersionUID = 1L;
+
+        private AtomicLong triples = new AtomicLong();
+        private AtomicLong bytes = new AtomicLong();
+        // hand-off order across both buffers; pending buffers sort last
+        long sequence = Long.MAX_VALUE;
+        private AtomicInteger flushedParts = new AtomicInteger();
 
-    class TriplesHashMap extends ConcurrentHashMap<Node, Graph> {
+        public void add(Node g, Triple t) {
+            Graph graph = computeIfAbsent(g, k -> GraphFactory.createGraphMem());
+            int before = graph.size();
+            graph.add(t);
+            if (graph.size() != before) {
+                triples.incrementAndGet();
+                bytes.addAndGet(estimateBytes(t));
+            }
+        }
+
+        public boolean removeTriple(Node g, Triple t) {
+            Graph graph = get(g);
+            if (graph == null) {
+                return false;
+            }
+            int before = graph.size();
+            graph.delete(t);
+            if (graph.size() == before) {
+                return false;
+            }
+            triples.decrementAndGet();
+            bytes.addAndGet(-estimateBytes(t));
+            if (graph.isEmpty()) {
+                remove(g);
+            }
+            return true;
+        }
 
-        public int triplesCount() {
-            return values().stream().mapToInt( v -> v.size()).sum();
+        /*
+         * Copies the triples matching a pattern into another map.  A
+         * graph of Node.ANY matches every graph.
+         */
+        void copyMatches(Node g, Node s, Node p, Node o, TriplesHashMap into) {
+            forEach((graphNode, graph) -> {
+                if (g == Node.ANY || g.equals(graphNode)) {
+                    Iterator<Triple> triples = graph.find(s, p, o);
+                    while (triples.hasNext()) {
+                        into.add(graphNode, triples.next());
+                    }
+                }
+            });
+        }
+
+        public long triplesCount() {
+            return triples.get();
+        }
+
+        public long bytesCount() {
+            return bytes.get();
+        }
+
+        /*
+         * Splits the graphs into parts by hash of the graph node, so a
+         * graph always lands in the same part.  Byte totals are not
+         * carried over; parts are only ever sent.
+         */
+        TriplesHashMap[] partition(int parts) {
+            TriplesHashMap[] result = new TriplesHashMap[parts];
+            if (parts == 1) {
+                result[0] = this;
+                return result;
+            }
+            for (int i = 0; i < parts; i++) {
+                result[i] = new TriplesHashMap();
+            }
+            forEach((g, graph) -> {
+                TriplesHashMap part = result[Math.floorMod(g.hashCode(), parts)];
+                part.put(g, graph);
+                part.triples.addAndGet(graph.size());
+            });
+            return result;
         }
     }
 
     protected TriplesHashMap cache;
     protected JenaDatabaseClient client;
+    private BufferFlusher flusher;
+    // handed off and not yet flushed, by sequence; frozen once in here
+    private final ConcurrentSkipListMap<Long, TriplesHashMap> inFlight = new ConcurrentSkipListMap<>();
+    // guards the active buffer; a writer may hold it while waiting for
+    // the flusher, so the scheduled tick only ever tries it
+    private final ReentrantLock lock = new ReentrantLock();
 
     protected final static long DEFAULT_CACHE_SIZE = 199;
-    protected long cacheSize = DEFAULT_CACHE_SIZE;
+    protected volatile long cacheSize = DEFAULT_CACHE_SIZE;
+    protected final static long DEFAULT_CACHE_BYTES = 0;
+    protected long cacheBytes = DEFAULT_CACHE_BYTES;
     protected final static long DEFAULT_CACHE_MILLIS = 750;
     protected final static long DEFAULT_INITIAL_DELAY = 750;
     protected long cacheMillis = DEFAULT_CACHE_MILLIS;
-    protected Date lastCacheAccess = new Date();
+    protected volatile long lastCacheAccess = System.currentTimeMillis();
+
+    // adaptive sizing; off while targetFlushMillis is zero.  Guarded by
+    // its own lock because flushed() runs on the flusher thread.
+    private final Object sizing = new Object();
+    private long minCacheSize;
+    private long maxCacheSize;
+    private long targetFlushMillis = 0;
+    private volatile long lastFlushMillis = 0;
+    private volatile double averageFlushMillis = 0;
+
     protected static Node DEFAULT_GRAPH_NODE = NodeFactory
             .createURI(MarkLogicDatasetGraph.DEFAULT_GRAPH_URI);
 
@@ -60,45 +169,265 @@ public abstract class TripleBuffer extends TimerTask {
         super();
         this.cache = new TriplesHashMap();
         this.client = client;
+        this.flusher = client.getBufferFlusher();
     }
 
     public void setCacheInterval(long millis) {
         this.cacheMillis = millis;
     }
 
+    /**
+     * Sets the number of triples above which the buffer is flushed.
+     * @param triples The triple threshold, or zero for no limit on triples.
+     */
+    public void setCacheSize(long triples) {
+        synchronized (sizing) {
+            this.targetFlushMillis = 0;
+            this.cacheSize = triples;
+        }
+    }
+
+    /**
+     * Lets the triple threshold float between two bounds so that a flush
+     * takes about targetMillis.  After each flush the threshold moves
+     * halfway towards the size that would have met the target.  Batches
+     * sent early by the timer only ever shrink it, since their latency
+     * is mostly fixed per-request cost.
+     * @param minTriples The smallest threshold to use.
+     * @param maxTriples The largest threshold to use.
+     * @param targetMillis The flush latency to aim for.
+     */
+    public void setAdaptiveCacheSize(long minTriples, long maxTriples, long targetMillis) {
+        if (minTriples < 1 || maxTriples < minTriples || targetMillis < 1) {
+            throw new IllegalArgumentException("Adaptive cache size needs 1 <= min <= max and a positive target");
+        }
+        synchronized (sizing) {
+            this.minCacheSize = minTriples;
+            this.maxCacheSize = maxTriples;
+            this.targetFlushMillis = targetMillis;
+            this.cacheSize = Math.max(minTriples, Math.min(maxTriples, cacheSize));
+        }
+    }
+
+    /**
+     * @return The number of triples above which the buffer is currently flushed.
+     */
+    public long getCacheSize() {
+        return cacheSize;
+    }
+
+    /**
+     * @return How long the most recent flush took, in milliseconds.
+     */
+    public long getLastFlushMillis() {
+        return lastFlushMillis;
+    }
+
+    /**
+     * @return A moving average of flush latency, in milliseconds.
+     */
+    public double getAverageFlushMillis() {
+        return averageFlushMillis;
+    }
+
+    /**
+     * Sets the estimated size in bytes above which the buffer is flushed.
+     * The estimate is the length of the triples written as N-Triples.
+     * @param bytes The byte threshold, or zero for no limit on bytes.
+     */
+    public void setCacheBytes(long bytes) {
+        this.cacheBytes = bytes;
+    }
+
+    protected boolean isFull() {
+        return cacheSize > 0 && cache.triplesCount() > cacheSize
+                || cacheBytes > 0 && cache.bytesCount() > cacheBytes;
+    }
+
+    /*
+     * Approximates the N-Triples serialization of a triple.
+     */
+    static long estimateBytes(Triple t) {
+        return estimateBytes(t.getSubject()) + estimateBytes(t.getPredicate())
+                + estimateBytes(t.getObject()) + 4;
+    }
+
+    private static long estimateBytes(Node n) {
+        if (n.isURI()) {
+            return n.getURI().length() + 2;
+        } else if (n.isLiteral()) {
+            String lang = n.getLiteralLanguage();
+            String datatype = n.getLiteralDatatypeURI();
+            return n.getLiteralLexicalForm().length() + 2
+                    + (lang != null && !lang.isEmpty() ? lang.length() + 1
+                    : datatype != null ? datatype.length() + 4 : 0);
+        } else {
+            return n.toString().length() + 2;
+        }
+    }
+
+    /**
+     * The scheduled tick.  Returns at once when the buffer is empty or
+     * a writer holds it, never waits on the flusher, and never throws, so
+     * that a shared scheduler is not held up and the schedule is not
+     * cancelled.  A skipped tick is retried on the next one.
+     */
     @Override
     public void run() {
-        Date now = new Date();
-        if (cache.triplesCount() > cacheSize || cache.size() > 0
-                && now.getTime() - lastCacheAccess.getTime() > cacheMillis) {
-            log.debug("Flushing triples buffer.");
-            flush();
-        } else {
+        if (cache.isEmpty() || !lock.tryLock()) {
             return;
         }
+        try {
+            if (isFull() || System.currentTimeMillis() - lastCacheAccess > cacheMillis) {
+                log.debug("Flushing triples buffer.");
+                handOff(false);
+            }
+        } catch (RuntimeException e) {
+            log.error("Scheduled flush of buffered triples failed", e);
+        } finally {
+            lock.unlock();
+        }
     }
 
-    protected abstract void flush();
+    /**
+     * Sends one buffer to MarkLogic.  Runs on the flusher thread, and
+     * must not take this buffer's lock, which may be held by a writer
+     * waiting for the flusher.
+     * @param batch A buffer that has been swapped out and is no longer written to.
+     */
+    protected abstract void flush(TriplesHashMap batch);
 
+    /**
+     * Swaps in an empty buffer and queues the full one with the flusher,
+     * waiting if the flusher has too many buffers in flight.
+     */
+    protected void handOff() {
+        lock.lock();
+        try {
+            handOff(true);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+     * Without blocking, leaves the buffer in place when the flusher
+     * cannot take it yet.  The caller holds the lock.
+     */
+    private void handOff(boolean block) {
+        if (cache.isEmpty()) { return; }
+        boolean full = isFull();
+        TriplesHashMap batch = cache;
+        batch.sequence = flusher.nextSequence();
+        inFlight.put(batch.sequence, batch);
+        boolean queued = flusher.submit(batch, client.isInTransaction(), block, (part, parts) -> {
+            try {
+                long start = System.nanoTime();
+                flush(part);
+                flushed(part.triplesCount(), parts, full, (System.nanoTime() - start) / 1000000);
+            } finally {
+                if (batch.flushedParts.incrementAndGet() == parts) {
+                    inFlight.remove(batch.sequence);
+                }
+            }
+        });
+        if (queued) {
+            cache = new TriplesHashMap();
+            lastCacheAccess = System.currentTimeMillis();
+        } else {
+            inFlight.remove(batch.sequence);
+            batch.sequence = Long.MAX_VALUE;
+        }
+    }
+
+    /*
+     * Records the latency of a completed flush of one part of a buffer
+     * and, if adaptive, moves the triple threshold.  Package-private for
+     * tests.
+     */
+    void flushed(long triples, int parts, boolean full, long millis) {
+        synchronized (sizing) {
+            lastFlushMillis = millis;
+            averageFlushMillis = averageFlushMillis == 0 ? millis : 0.8 * averageFlushMillis + 0.2 * millis;
+            if (targetFlushMillis == 0 || triples == 0) {
+                return;
+            }
+            if (millis > targetFlushMillis || full) {
+                long ideal = triples * parts * targetFlushMillis / Math.max(millis, 1);
+                cacheSize = Math.max(minCacheSize, Math.min(maxCacheSize, (cacheSize + ideal) / 2));
+                log.debug("Flushed " + triples + " triples in " + millis + "ms; cache size now " + cacheSize);
+            }
+        }
+    }
+
+    /**
+     * Flushes the active buffer and waits until everything handed
+     * off so far has reached the server.
+     */
     public void forceRun() {
-        flush();
+        handOff();
+        flusher.await();
+    }
+
+    /**
+     * Collects the quads matching a pattern that have not yet reached
+     * the server: those in buffers still in flight, oldest first, and
+     * then those in the active buffer.  Everything returned is a copy or
+     * no longer changes.  Batches that finish after this call are
+     * already on the server.
+     * @param g A graph node, or Node.ANY; never null.
+     */
+    List<TriplesHashMap> pending(Node g, Node s, Node p, Node o) {
+        lock.lock();
+        try {
+            List<TriplesHashMap> pending = new ArrayList<>();
+            for (TriplesHashMap batch : inFlight.values()) {
+                TriplesHashMap matches = new TriplesHashMap();
+                batch.copyMatches(g, s, p, o, matches);
+                matches.sequence = batch.sequence;
+                pending.add(matches);
+            }
+            TriplesHashMap matches = new TriplesHashMap();
+            cache.copyMatches(g, s, p, o, matches);
+            pending.add(matches);
+            return pending;
+        } finally {
+            lock.unlock();
+        }
     }
 
-    public synchronized void add(Node g, Node s, Node p, Node o) {
-        Triple newTiple = new Triple(s, p, o);
+    /**
+     * Drops a quad that has not yet been handed off, because a later
+     * opposite operation on the same quad supersedes it.
+     * @return true if the quad was pending in this buffer.
+     */
+    public boolean cancel(Node g, Node s, Node p, Node o) {
         if (g == null) {
             g = DEFAULT_GRAPH_NODE;
         }
-        if (cache.containsKey(g)) {
-            cache.get(g).add(newTiple);
-        } else {
-            Graph graph = GraphFactory.createGraphMem();
-            graph.add(newTiple);
-            cache.put(g, graph);
+        lock.lock();
+        try {
+            return cache.removeTriple(g, Triple.create(s, p, o));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void add(Node g, Node s, Node p, Node o) {
+        flusher.checkFailure();
+        Triple newTiple = Triple.create(s, p, o);
+        if (g == null) {
+            g = DEFAULT_GRAPH_NODE;
         }
-        if (cache.triplesCount() > cacheSize) {
-            log.debug("Size of cache big enough to flush.");
-            flush();
+        lock.lock();
+        try {
+            cache.add(g, newTiple);
+            if (isFull()) {
+                log.debug("Size of cache big enough to flush.");
+                handOff(true);
+            }
+        } finally {
+            lock.unlock();
         }
     }
 }
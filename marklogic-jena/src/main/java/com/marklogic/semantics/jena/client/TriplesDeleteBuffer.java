@@ -18,6 +18,7 @@ package com.marklogic.semantics.jena.client;
 import org.apache.jena.graph.Graph;
 import org.apache.jena.graph.Node;
 import org.apache.jena.graph.Triple;
+import org.apache.jena.sparql.util.FmtUtils;
 import com.marklogic.client.semantics.SPARQLBindings;
 import com.marklogic.client.semantics.SPARQLQueryDefinition;
 import com.marklogic.semantics.jena.MarkLogicDatasetGraph;
@@ -28,9 +29,9 @@ import org.slf4j.LoggerFactory;
 import java.util.*;
 
 /**
- * A Timer task that accumulates triples to remove from
+ * A buffer that accumulates triples to remove from
  * the DatasetGraph and periodically executes SPARQL UPDATE
- * to delete them.
+ * to delete them, in the form chosen by {@link DeleteStrategy}.
  */
 public class TriplesDeleteBuffer extends TripleBuffer {
 
@@ -41,15 +42,48 @@ public class TriplesDeleteBuffer extends TripleBuffer {
         super(client);
     }
 
-    protected synchronized void flush() {
-        if (cache.isEmpty()) { return; }
+    protected void flush(TriplesHashMap batch) {
+        if (client.getDeleteStrategy() == DeleteStrategy.VALUES) {
+            deleteValues(batch);
+        } else {
+            deleteData(batch);
+        }
+    }
+
+    /*
+     * Sends the whole buffer as one DELETE with a single template and the
+     * quads written inline in a VALUES block.
+     */
+    private void deleteValues(TriplesHashMap batch) {
+        StringBuilder entireQuery = new StringBuilder();
+        entireQuery.append("DELETE { GRAPH ?g { ?s ?p ?o } } WHERE { VALUES (?g ?s ?p ?o) {\n");
+        for (Node graphNode : batch.keySet()) {
+            String graph = FmtUtils.stringForNode(graphNode);
+            Iterator<Triple> triples = batch.get(graphNode).find(Node.ANY, Node.ANY, Node.ANY);
+            while (triples.hasNext()) {
+                Triple t = triples.next();
+                entireQuery.append("(").append(graph)
+                        .append(" ").append(FmtUtils.stringForNode(t.getSubject()))
+                        .append(" ").append(FmtUtils.stringForNode(t.getPredicate()))
+                        .append(" ").append(FmtUtils.stringForNode(t.getObject()))
+                        .append(")\n");
+            }
+        }
+        entireQuery.append("} }");
+        client.executeUpdate(client.newQueryDefinition(entireQuery.toString()));
+    }
+
+    /*
+     * Sends the whole buffer as a single DELETE DATA with bound variables.
+     */
+    private void deleteData(TriplesHashMap batch) {
         int bindNumber = 1;
         SPARQLQueryDefinition qdef = client.newQueryDefinition("TMP");
         SPARQLBindings bindings = qdef.getBindings();
         StringBuffer entireQuery = new StringBuffer();
         entireQuery.append("DELETE DATA { ");
-        for (Node graphNode : cache.keySet()) {
-            Graph g = cache.get(graphNode);
+        for (Node graphNode : batch.keySet()) {
+            Graph g = batch.get(graphNode);
             bindings.bind("g" + bindNumber, graphNode.getURI().toString());
             String graphWrapper = "GRAPH ?g" + bindNumber + " { ";
 
@@ -71,12 +105,6 @@ public class TriplesDeleteBuffer extends TripleBuffer {
         qdef.setSparql(entireQuery.toString());
 
         client.executeUpdate(qdef);
-        lastCacheAccess = new Date();
-        cache.clear();
-    }
-
-    public void forceRun() {
-        flush();
     }
 
 }
@@ -20,8 +20,6 @@ import java.util.*;
 import com.marklogic.client.semantics.SPARQLBindings;
 import com.marklogic.client.semantics.SPARQLQueryDefinition;
 import org.apache.commons.lang3.StringUtils;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 import org.apache.jena.graph.Graph;
 import org.apache.jena.graph.Node;
@@ -29,26 +27,44 @@ import org.apache.jena.graph.Triple;
 import com.marklogic.semantics.jena.MarkLogicDatasetGraph;
 
 /**
- * a timer task that flushes a cache of pending triple add statements
- * periodically.
+ * Buffers pending triple adds.  The client's scheduled tick, or a writer
+ * that fills the buffer, hands it to the {@link BufferFlusher}, whose
+ * lanes send it with the client's {@link WriteStrategy}.
  */
 public class TriplesWriteBuffer extends TripleBuffer {
 
-    private static Logger log = LoggerFactory.getLogger(TriplesWriteBuffer.class);
-
     public TriplesWriteBuffer(JenaDatabaseClient client) {
         super(client);
     }
 
-    protected synchronized void flush() {
-        if (cache.isEmpty()) { return; }
+    protected void flush(TriplesHashMap batch) {
+        if (client.getWriteStrategy() == WriteStrategy.GRAPH_STORE) {
+            mergeGraphs(batch);
+        } else {
+            insertData(batch);
+        }
+    }
+
+    /*
+     * Streams each buffered graph to the graph store endpoint.
+     */
+    private void mergeGraphs(TriplesHashMap batch) {
+        for (Node graphNode : batch.keySet()) {
+            client.mergeGraph(graphNode.getURI(), batch.get(graphNode));
+        }
+    }
+
+    /*
+     * Sends the whole buffer as a single INSERT DATA with bound variables.
+     */
+    private void insertData(TriplesHashMap batch) {
         int bindNumber = 1;
         SPARQLQueryDefinition qdef = client.newQueryDefinition("TMP");
         SPARQLBindings bindings = qdef.getBindings();
         StringBuffer entireQuery = new StringBuffer();
         entireQuery.append("INSERT DATA { ");
-        for (Node graphNode : cache.keySet()) {
-            Graph g = cache.get(graphNode);
+        for (Node graphNode : batch.keySet()) {
+            Graph g = batch.get(graphNode);
             bindings.bind("g" + bindNumber, graphNode.getURI().toString());
             String graphWrapper = "GRAPH ?g" + bindNumber + " { ";
 
@@ -66,12 +82,8 @@ public class TriplesWriteBuffer extends TripleBuffer {
             entireQuery.append(graphWrapper);
         }
         entireQuery.append("} ");
-        //log.debug(entireQuery.toString());
-        //log.debug(cache.keySet().toString());
         qdef.setSparql(entireQuery.toString());
 
         client.executeUpdate(qdef);
-        lastCacheAccess = new Date();
-        cache.clear();
     }
 }
\ No newline at end of file
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2016-2019 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.semantics.jena.client;
+
+/**
+ * The ways in which {@link TriplesWriteBuffer} can send a batch of
+ * buffered triples to MarkLogic.
+ */
+public enum WriteStrategy {
+
+    /**
+     * One SPARQL INSERT DATA request per flush, with each triple
+     * passed as bound variables.  Atomic across graphs.
+     */
+    SPARQL_UPDATE,
+
+    /**
+     * Each buffered graph is streamed as N-Triples to the
+     * graph store endpoint with a merge.  The request body is about
+     * the size of the data and needs no SPARQL parsing on the server,
+     * but a flush that spans several graphs is one request per graph.
+     */
+    GRAPH_STORE
+}
@@ -17,18 +17,17 @@ package com.marklogic.semantics.jena.engine;
 
 import java.io.ByteArrayInputStream;
 import java.util.Iterator;
+import java.util.List;
+import java.util.function.Supplier;
 
 import org.apache.jena.graph.Node;
 import org.apache.jena.graph.Triple;
 import org.apache.jena.query.Query;
-import org.apache.jena.query.ResultSet;
-import org.apache.jena.query.ResultSetFactory;
 import org.apache.jena.riot.Lang;
 import org.apache.jena.riot.RDFDataMgr;
 import org.apache.jena.riot.RiotException;
 import org.apache.jena.sparql.ARQConstants;
 import org.apache.jena.sparql.algebra.Op;
-import org.apache.jena.sparql.core.BasicPattern;
 import org.apache.jena.sparql.core.DatasetGraph;
 import org.apache.jena.sparql.core.Var;
 import org.apache.jena.sparql.engine.ExecutionContext;
@@ -42,9 +41,7 @@ import org.apache.jena.sparql.engine.binding.BindingFactory;
 import org.apache.jena.sparql.engine.iterator.QueryIter1;
 import org.apache.jena.sparql.engine.iterator.QueryIterRoot;
 import org.apache.jena.sparql.engine.iterator.QueryIteratorCheck;
-import org.apache.jena.sparql.engine.iterator.QueryIteratorResultSet;
 import org.apache.jena.sparql.engine.main.QueryEngineMain;
-import org.apache.jena.sparql.syntax.Template;
 import org.apache.jena.sparql.util.Context;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -55,6 +52,7 @@ import com.marklogic.client.semantics.SPARQLQueryDefinition;
 import com.marklogic.semantics.jena.MarkLogicDatasetGraph;
 import com.marklogic.semantics.jena.MarkLogicJenaException;
 import com.marklogic.semantics.jena.client.JenaDatabaseClient;
+import com.marklogic.semantics.jena.client.SPARQLResultsJSONReader;
 
 /**
  * Implements a hook into the Jena query execution framework
@@ -66,8 +64,6 @@ public class MarkLogicQueryEngine extends QueryEngineMain {
 
 	@SuppressWarnings("unused")
 	private final static Logger log = LoggerFactory.getLogger(MarkLogicQueryEngine.class);
-	private BasicPattern bgp = null;
-	private Template template = null;
 	private MarkLogicDatasetGraph markLogicDatasetGraph;
 	private Binding initial;
 
@@ -91,6 +87,24 @@ public class MarkLogicQueryEngine extends QueryEngineMain {
         QueryEngineRegistry.removeFactory(factory);
     }
 
+    /**
+     * Sets how many queries may wait on MarkLogic at once, across every
+     * dataset in the JVM.  Further queries wait for one of these to
+     * finish.  A query that times out or is aborted stops being waited
+     * for at once, but keeps its place until the server finishes it.
+     * @param max The number of concurrent query requests; 32 by default.
+     */
+    public static void setMaxConcurrentRequests(int max) {
+        RemoteRequest.setMaxRequests(max);
+    }
+
+    /**
+     * @return The number of queries that may wait on MarkLogic at once.
+     */
+    public static int getMaxConcurrentRequests() {
+        return RemoteRequest.getMaxRequests();
+    }
+
     /**
      * Constructor.
      * @param query A Jena Query.  This engine does not use all parts of the Query hierarchy.
@@ -101,12 +115,6 @@ public class MarkLogicQueryEngine extends QueryEngineMain {
     private MarkLogicQueryEngine(Query query, DatasetGraph datasetGraph,
             Binding initial, Context context) {
         super(query, datasetGraph, initial, context);
-        bgp = new BasicPattern();
-        bgp.add(new Triple(
-                Var.alloc("s"),
-                Var.alloc("p"),
-                Var.alloc("o")));
-        template = new Template(bgp);
         this.markLogicDatasetGraph = (MarkLogicDatasetGraph) datasetGraph;
         this.initial = initial;
     }
@@ -125,8 +133,6 @@ public class MarkLogicQueryEngine extends QueryEngineMain {
         SPARQLQueryDefinition qdef = client.newQueryDefinition(query.toString());
         if (query.getBaseURI() != null) {
             qdef.setBaseUri(query.getBaseURI());
-        } else {
-            query.setBaseURI((String) null);
         }
         if (markLogicDatasetGraph.getRulesets() != null) {
             qdef.setRulesets(markLogicDatasetGraph.getRulesets());
@@ -151,6 +157,46 @@ public class MarkLogicQueryEngine extends QueryEngineMain {
         }
     }
 
+    /*
+     * Sends a query for a response stream, or answers it from the cache.
+     * A response small enough to cache is read in full on the request's
+     * thread before it is handed back.  version is the cache's version
+     * from before the buffers were synced.
+     */
+    private static RemoteRequest<InputStreamHandle> request(QueryResultCache cache,
+            QueryResultCache.Key key, long version, Supplier<InputStreamHandle> send) {
+        if (cache == null) {
+            return new RemoteRequest<>(send);
+        }
+        byte[] cached = cache.get(key);
+        if (cached != null) {
+            return RemoteRequest.completed(new InputStreamHandle(new ByteArrayInputStream(cached)));
+        }
+        return new RemoteRequest<>(() -> {
+            InputStreamHandle response = send.get();
+            if (response.get() == null) {
+                return response;
+            }
+            return new InputStreamHandle(cache.capture(key, response.get(), version));
+        });
+    }
+
+    private static RemoteRequest<Boolean> askRequest(QueryResultCache cache,
+            QueryResultCache.Key key, long version, Supplier<Boolean> send) {
+        if (cache == null) {
+            return new RemoteRequest<>(send);
+        }
+        byte[] cached = cache.get(key);
+        if (cached != null) {
+            return RemoteRequest.completed(cached[0] == 1);
+        }
+        return new RemoteRequest<>(() -> {
+            boolean answer = send.get();
+            cache.put(key, new byte[] { (byte) (answer ? 1 : 0) }, version);
+            return answer;
+        });
+    }
+
     @Override
     /**
      * Evaluation hook for all queries.
@@ -161,6 +207,11 @@ public class MarkLogicQueryEngine extends QueryEngineMain {
       ExecutionContext execCxt = new ExecutionContext(context, null, dsg, null);
       MarkLogicDatasetGraph markLogicDatasetGraph = (MarkLogicDatasetGraph) originalDataset;
       JenaDatabaseClient client = markLogicDatasetGraph.getDatabaseClient();
+      // a transaction sees its own uncommitted changes, so it is never cached.
+      // The version is read before sync(): a change buffered after this
+      // point may miss the request, so its response must not be kept.
+      QueryResultCache cache = client.isInTransaction() ? null : markLogicDatasetGraph.getQueryCache();
+      long cacheVersion = cache == null ? 0 : cache.version();
       markLogicDatasetGraph.sync();
       markLogicDatasetGraph.syncAdds();
       QueryIterator qIter = null;
@@ -169,44 +220,59 @@ public class MarkLogicQueryEngine extends QueryEngineMain {
 
       Long limit = null;
       Long offset = null;
+      // the caller's Query is never changed; what is sent is a clone
+      Query remote = query;
+      if (query.isConstructType()) {
+          // the WHERE clause runs as a SELECT, and Jena fills in the
+          // template, which the clone shares with the caller's Query,
+          // from its rows
+          remote = query.cloneQuery();
+          remote.setQuerySelectType();
+          remote.setQueryResultStar(true);
+          remote.setResultVars();
+      }
+      if (query.hasLimit() || query.hasOffset()) {
+          // sent as paging parameters
+          if (remote == query) {
+              remote = query.cloneQuery();
+          }
+          remote.setLimit(Query.NOLIMIT);
+          remote.setOffset(Query.NOLIMIT);
+      }
       if (query.hasLimit()) {
           limit = query.getLimit();
-          query.setLimit(Query.NOLIMIT);
       }
       if (query.hasOffset()) {
           // offset is off-by-one from 'start'
           offset = query.getOffset() + 1;
-          query.setOffset(Query.NOLIMIT);
       }
 
-      SPARQLQueryDefinition qdef = prepareQueryDefinition(query);
+      SPARQLQueryDefinition qdef = prepareQueryDefinition(remote);
 
       InputStreamHandle handle = new InputStreamHandle();
 
+      QueryResultCache.Key key = cache == null ? null : cache.key(qdef, this.initial, offset, limit);
+
+      // each request runs in the background, so a timeout or abort that
+      // cancels the iterator also abandons the wait for the server
       if (query.isAskType()) {
-        boolean answer = client.executeAsk(qdef);
+        RemoteRequest<Boolean> answer = askRequest(cache, key, cacheVersion, () -> client.executeAsk(qdef));
         QueryIterator qIter1 = QueryIterRoot.create(initial, execCxt) ;
         qIter = new BooleanQueryIterator(qIter1, execCxt, answer);
-      } else if (query.isConstructType() || query.isDescribeType()) {
-        // what I need to create here is a QueryIterator that contains
-        // bindings of s, p, and o to every triple.
-        if (query.isConstructType()) client.executeConstruct(qdef, handle);
-        if (query.isDescribeType()) client.executeDescribe(qdef, handle);
-        Iterator<Triple> triples = null;
-        if(handle.get() != null) {
-          triples = RDFDataMgr.createIteratorTriples(handle.get(), Lang.NTRIPLES, null);
-        } else {
-          log.info("Got null result from CONSTRUCT, constructing alternate iterator");
-          triples = RDFDataMgr.createIteratorTriples(new ByteArrayInputStream(".".getBytes()), Lang.NTRIPLES, null);
-        }
+      } else if (query.isDescribeType()) {
+        // a QueryIterator that contains bindings of s, p, and o to every
+        // triple; Jena describes the nodes it finds in them
+        RemoteRequest<InputStreamHandle> response = request(cache, key, cacheVersion,
+                () -> client.executeDescribe(qdef, handle));
         QueryIterator qIter1 = QueryIterRoot.create(initial, execCxt) ;
-          qIter = new TripleQueryIterator(qIter1, execCxt, triples);
-        query.setConstructTemplate(template);
-        //throw new MarkLogicJenaException("Construct Type Supported by Engine Layer");
-      } else if (query.isSelectType()) {
-        client.executeSelect(qdef, handle, offset, limit);
-        ResultSet results = ResultSetFactory.fromJSON(handle.get());
-        qIter = new QueryIteratorResultSet(results);
+          qIter = new TripleQueryIterator(qIter1, execCxt, response);
+      } else if (query.isSelectType() || query.isConstructType()) {
+        Long start = offset;
+        Long pageLength = limit;
+        RemoteRequest<InputStreamHandle> response = request(cache, key, cacheVersion,
+                () -> client.executeSelect(qdef, handle, start, pageLength));
+        QueryIterator qIter1 = QueryIterRoot.create(initial, execCxt) ;
+        qIter = new SelectQueryIterator(qIter1, execCxt, response, remote.getResultVars());
       } else {
         handle.close();
         throw new MarkLogicJenaException("Unrecognized Query Type");
@@ -255,26 +321,26 @@ public class MarkLogicQueryEngine extends QueryEngineMain {
      * Wraps a boolean result into an iterator implementation (with one item)
      */
     class BooleanQueryIterator extends QueryIter1 implements QueryIterator {
-    	private boolean answer;
+    	private RemoteRequest<Boolean> answer;
 
-		public BooleanQueryIterator(QueryIterator input, ExecutionContext ctx, Boolean answer) {
+		public BooleanQueryIterator(QueryIterator input, ExecutionContext ctx, RemoteRequest<Boolean> answer) {
 			super(input, ctx);
 			this.answer = answer;
 		}
 
 		@Override
 		protected void requestSubCancel() {
-			//pass
+			answer.abandon();
 		}
 
 		@Override
 		protected void closeSubIterator() {
-			//pass
+			answer.abandon();
 		}
 
 		@Override
 		protected boolean hasNextBinding() {
-			return answer;
+			return answer.get();
 		}
 
 		@Override
@@ -283,21 +349,110 @@ public class MarkLogicQueryEngine extends QueryEngineMain {
 		}
     }
 
+    /**
+     * Streams the rows of a SELECT as bindings, parsing each from the
+     * response only when it is asked for.  Closing or cancelling the
+     * iterator closes the response stream, which abandons the rest of the
+     * results and releases the connection instead of reading them.
+     */
+    class SelectQueryIterator extends QueryIter1 {
+
+    	private final RemoteRequest<InputStreamHandle> response;
+    	private volatile SPARQLResultsJSONReader results;
+    	private final String[] names;
+    	private final Var[] vars;
+    	private final Node[] row;
+    	private volatile boolean cancelled = false;
+    	private boolean ready = false;
+    	private boolean exhausted = false;
+
+		public SelectQueryIterator(QueryIterator input, ExecutionContext execCxt,
+				RemoteRequest<InputStreamHandle> response, List<String> resultVars) {
+			super(input, execCxt);
+			this.response = response;
+			this.names = resultVars.toArray(new String[0]);
+			this.vars = new Var[names.length];
+			for (int i = 0; i < vars.length; i++) {
+				vars[i] = Var.alloc(names[i]);
+			}
+			this.row = new Node[vars.length];
+		}
+
+		@Override
+		protected boolean hasNextBinding() {
+			if (!ready && !exhausted) {
+				try {
+					if (results == null) {
+						results = new SPARQLResultsJSONReader(response.get().get(), names);
+					}
+					ready = results.next(row);
+				} catch (RuntimeException e) {
+					// a cancel closes the stream under a read in progress
+					if (!cancelled) {
+						throw e;
+					}
+					ready = false;
+				}
+				exhausted = !ready;
+			}
+			return ready;
+		}
+
+		@Override
+		protected Binding moveToNextBinding() {
+			hasNextBinding();
+			ready = false;
+			BindingBuilder binding = BindingFactory.builder();
+			for (int i = 0; i < vars.length; i++) {
+				if (row[i] != null) {
+					binding.add(vars[i], row[i]);
+				}
+			}
+			return binding.build();
+		}
+
+		@Override
+		protected void requestSubCancel() {
+			cancelled = true;
+			closeSubIterator();
+		}
+
+		@Override
+		protected void closeSubIterator() {
+			response.abandon();
+			SPARQLResultsJSONReader reader = results;
+			if (reader != null) {
+				reader.close();
+			}
+		}
+    }
+
     /**
      * Wraps the results of a CONSTRUCT query into a new binding
      * which is understood by Jena's internals.
      */
     class TripleQueryIterator extends QueryIter1 {
 
+    	private RemoteRequest<InputStreamHandle> response;
     	private Iterator<Triple> triples;
 
-		public TripleQueryIterator(QueryIterator input, ExecutionContext execCxt, Iterator<Triple> triples) {
+		public TripleQueryIterator(QueryIterator input, ExecutionContext execCxt,
+				RemoteRequest<InputStreamHandle> response) {
 			super(input, execCxt);
-			this.triples = triples;
+			this.response = response;
 		}
 
 		@Override
 		protected boolean hasNextBinding() {
+			if (triples == null) {
+				InputStreamHandle handle = response.get();
+				if (handle.get() != null) {
+					triples = RDFDataMgr.createIteratorTriples(handle.get(), Lang.NTRIPLES, null);
+				} else {
+					log.info("Got null result from CONSTRUCT, constructing alternate iterator");
+					triples = RDFDataMgr.createIteratorTriples(new ByteArrayInputStream(".".getBytes()), Lang.NTRIPLES, null);
+				}
+			}
 			return triples.hasNext();
 		}
 
@@ -320,12 +475,12 @@ public class MarkLogicQueryEngine extends QueryEngineMain {
 
 		@Override
 		protected void requestSubCancel() {
-			// not needed?
+			response.abandon();
 		}
 
 		@Override
 		protected void closeSubIterator() {
-			// not needed?
+			response.abandon();
 		}
 
 	}
@@ -15,12 +15,17 @@
  */
 package com.marklogic.semantics.jena.engine;
 
+import java.util.List;
+
+import org.apache.jena.graph.Node;
 import org.apache.jena.sparql.core.DatasetGraph;
+import org.apache.jena.sparql.core.Quad;
 import org.apache.jena.sparql.engine.binding.Binding;
 import org.apache.jena.sparql.modify.UpdateEngine;
 import org.apache.jena.sparql.modify.UpdateEngineFactory;
 import org.apache.jena.sparql.modify.UpdateEngineMain;
 import org.apache.jena.sparql.modify.UpdateEngineRegistry;
+import org.apache.jena.sparql.modify.request.Target;
 import org.apache.jena.sparql.modify.request.UpdateAdd;
 import org.apache.jena.sparql.modify.request.UpdateClear;
 import org.apache.jena.sparql.modify.request.UpdateCopy;
@@ -29,6 +34,7 @@ import org.apache.jena.sparql.modify.request.UpdateDataDelete;
 import org.apache.jena.sparql.modify.request.UpdateDataInsert;
 import org.apache.jena.sparql.modify.request.UpdateDeleteWhere;
 import org.apache.jena.sparql.modify.request.UpdateDrop;
+import org.apache.jena.sparql.modify.request.UpdateDropClear;
 import org.apache.jena.sparql.modify.request.UpdateLoad;
 import org.apache.jena.sparql.modify.request.UpdateModify;
 import org.apache.jena.sparql.modify.request.UpdateMove;
@@ -130,14 +136,40 @@ public class MarkLogicUpdateEngine extends UpdateEngineMain {
             client.executeUpdate(qdef);
         }
 
+        /*
+         * Drops cached finds that the quads or quad patterns of an update
+         * could affect.  Templates in the default graph refer to the WITH
+         * graph, if there is one.
+         */
+        private void invalidate(List<Quad> quads, Node withGraph) {
+            for (Quad quad : quads) {
+                Node g = quad.isDefaultGraph() && withGraph != null ? withGraph : quad.getGraph();
+                markLogicDatasetGraph.invalidateCaches(g, quad.getSubject(),
+                        quad.getPredicate(), quad.getObject());
+            }
+        }
+
+        private void invalidate(UpdateDropClear update) {
+            Target target = update.getTarget();
+            Node g = target.isOneNamedGraph() ? target.getGraph()
+                    : target.isDefault() ? Quad.defaultGraphIRI : Node.ANY;
+            markLogicDatasetGraph.invalidateCaches(g, Node.ANY, Node.ANY, Node.ANY);
+        }
+
+        private void invalidateAll() {
+            markLogicDatasetGraph.invalidateCaches(Node.ANY, Node.ANY, Node.ANY, Node.ANY);
+        }
+
         @Override
         public void visit(UpdateDrop update) {
             exec(update);
+            invalidate(update);
         }
 
         @Override
         public void visit(UpdateClear update) {
             exec(update);
+            invalidate(update);
         }
 
         @Override
@@ -148,41 +180,50 @@ public class MarkLogicUpdateEngine extends UpdateEngineMain {
         @Override
         public void visit(UpdateLoad update) {
             exec(update);
+            invalidateAll();
         }
 
         @Override
         public void visit(UpdateAdd update) {
             exec(update);
+            invalidateAll();
         }
 
         @Override
         public void visit(UpdateCopy update) {
             exec(update);
+            invalidateAll();
         }
 
         @Override
         public void visit(UpdateMove update) {
             exec(update);
+            invalidateAll();
         }
 
         @Override
         public void visit(UpdateDataInsert update) {
             exec(update);
+            invalidate(update.getQuads(), null);
         }
 
         @Override
         public void visit(UpdateDataDelete update) {
             exec(update);
+            invalidate(update.getQuads(), null);
         }
 
         @Override
         public void visit(UpdateDeleteWhere update) {
             exec(update);
+            invalidate(update.getQuads(), null);
         }
 
         @Override
         public void visit(UpdateModify update) {
             exec(update);
+            invalidate(update.getDeleteQuads(), update.getWithIRI());
+            invalidate(update.getInsertQuads(), update.getWithIRI());
         }
 
     }
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2016-2019 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.semantics.jena.engine;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Iterator;
+import java.util.TreeMap;
+
+import org.apache.jena.riot.out.NodeFmtLib;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.binding.Binding;
+
+import com.marklogic.client.query.QueryDefinition;
+import com.marklogic.client.semantics.SPARQLQueryDefinition;
+import com.marklogic.client.semantics.SPARQLRuleset;
+import com.marklogic.semantics.jena.MarkLogicJenaException;
+import com.marklogic.semantics.jena.client.LRUCache;
+
+/**
+ * Responses to queries run through {@link MarkLogicQueryEngine}, kept as
+ * the bytes MarkLogic returned so that a repeated query is answered
+ * without a request.  A response is keyed by the query text as Jena
+ * serializes it, its base URI, initial bindings, rulesets, page and
+ * constraining query; the constraining query must be the same object.
+ * The cache is bounded by entries and by bytes, entries expire after a
+ * time to live, and MarkLogicDatasetGraph invalidates it on every change
+ * made through it.  Queries inside a transaction bypass it.
+ * Turn it on with MarkLogicDatasetGraph.setQueryCache().
+ */
+public class QueryResultCache {
+
+    private final LRUCache<Key, byte[]> responses;
+    private final long maxResponseBytes;
+
+    /**
+     * @param maxEntries The number of responses to keep.
+     * @param maxBytes The most bytes of responses to keep, or zero for no
+     *                 limit.  A larger response is not cached.
+     * @param ttlMillis How long a response may be served, or zero for no limit.
+     */
+    public QueryResultCache(int maxEntries, long maxBytes, long ttlMillis) {
+        this.responses = new LRUCache<>(maxEntries, maxBytes, ttlMillis, bytes -> bytes.length);
+        this.maxResponseBytes = maxBytes > 0 ? maxBytes : Integer.MAX_VALUE - 8;
+    }
+
+    /**
+     * Drops every response.
+     */
+    public void clear() {
+        responses.clear();
+    }
+
+    /**
+     * Marks every response stale, in constant time, as every change made
+     * through MarkLogicDatasetGraph does.
+     */
+    public void invalidate() {
+        responses.invalidateGroup(null);
+    }
+
+    /**
+     * @return The number of responses held.
+     */
+    public int size() {
+        return responses.size();
+    }
+
+    Key key(SPARQLQueryDefinition qdef, Binding initial, Long start, Long pageLength) {
+        StringBuilder sb = new StringBuilder(qdef.getSparql());
+        sb.append('\n').append(qdef.getBaseUri());
+        sb.append('\n').append(start).append(' ').append(pageLength).append('\n');
+        SPARQLRuleset[] rulesets = qdef.getRulesets();
+        if (rulesets != null) {
+            for (SPARQLRuleset ruleset : rulesets) {
+                sb.append(ruleset.getName()).append(' ');
+            }
+        }
+        sb.append('\n');
+        if (initial != null) {
+            TreeMap<String, String> bindings = new TreeMap<>();
+            Iterator<Var> vars = initial.vars();
+            while (vars.hasNext()) {
+                Var v = vars.next();
+                bindings.put(v.getName(), NodeFmtLib.strNT(initial.get(v)));
+            }
+            bindings.forEach((name, value) -> sb.append(name).append('=').append(value).append('\n'));
+        }
+        return new Key(sb.toString(), qdef.getConstrainingQueryDefinition());
+    }
+
+    byte[] get(Key key) {
+        return responses.get(key);
+    }
+
+    long version() {
+        return responses.version();
+    }
+
+    void put(Key key, byte[] response, long version) {
+        responses.put(key, response, version);
+    }
+
+    /**
+     * Reads a response into the cache if it is small enough.
+     * @param version The {@link #version()} read before the request.
+     * @return A stream of the whole response, for the caller to read.
+     */
+    InputStream capture(Key key, InputStream response, long version) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = response.read(buffer)) != -1) {
+                bytes.write(buffer, 0, n);
+                if (bytes.size() > maxResponseBytes) {
+                    // too big to keep: hand back what was read and the rest
+                    return new SequenceInputStream(
+                            new ByteArrayInputStream(bytes.toByteArray()), response);
+                }
+            }
+            response.close();
+            byte[] whole = bytes.toByteArray();
+            responses.put(key, whole, version);
+            return new ByteArrayInputStream(whole);
+        } catch (IOException e) {
+            throw new MarkLogicJenaException("Could not read query response", e);
+        }
+    }
+
+    /*
+     * The query text and settings, with the constraining query compared
+     * by identity.
+     */
+    static final class Key {
+        private final String text;
+        private final QueryDefinition constrainingQueryDefinition;
+
+        Key(String text, QueryDefinition constrainingQueryDefinition) {
+            this.text = text;
+            this.constrainingQueryDefinition = constrainingQueryDefinition;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return text.equals(other.text)
+                    && constrainingQueryDefinition == other.constrainingQueryDefinition;
+        }
+
+        @Override
+        public int hashCode() {
+            return text.hashCode() * 31 + System.identityHashCode(constrainingQueryDefinition);
+        }
+    }
+}
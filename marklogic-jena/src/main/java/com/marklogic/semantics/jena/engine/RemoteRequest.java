@@ -0,0 +1,186 @@
+/*
+ * Copyright 2016-2019 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.semantics.jena.engine;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.apache.jena.query.QueryCancelledException;
+
+import com.marklogic.client.MarkLogicServerException;
+import com.marklogic.semantics.jena.MarkLogicJenaException;
+import com.marklogic.semantics.jena.MarkLogicQueryTimeoutException;
+
+/**
+ * One query request to MarkLogic, sent on a background thread so that
+ * the thread waiting for its response can be released by
+ * {@link #abandon()}, as Jena does on QueryExecution.abort() and when a
+ * query timeout expires.  The Java Client API gives no handle on a
+ * request in progress and MarkLogic has no call to stop one, so
+ * abandoning a request only ends the wait: a request still waiting
+ * for a thread is never sent, a response stream is closed, which
+ * releases its connection, and a response that arrives later is closed
+ * unread.  The server runs an abandoned query until it finishes or
+ * reaches its request time limit.
+ * <p>
+ * At most {@link #DEFAULT_MAX_REQUESTS} requests, or the number set with
+ * {@link #setMaxRequests(int)}, are sent at once; the rest wait in turn.
+ */
+class RemoteRequest<T> {
+
+    static final int DEFAULT_MAX_REQUESTS = 32;
+
+    private static final String TIME_LIMIT_EXCEEDED = "XDMP-EXTIME";
+
+    private static ThreadPoolExecutor requests;
+
+    private final Future<T> response;
+    // guarded by this: set once abandoned, or to the response once it arrives
+    private boolean abandoned = false;
+    private T arrived;
+
+    /**
+     * Sends the request.
+     * @param request Calls the server and returns its response.
+     */
+    RemoteRequest(Supplier<T> request) {
+        this.response = requests().submit(() -> {
+            T result = request.get();
+            synchronized (this) {
+                if (abandoned) {
+                    discard(result);
+                } else {
+                    arrived = result;
+                }
+            }
+            return result;
+        });
+    }
+
+    private RemoteRequest(Future<T> response, T value) {
+        this.response = response;
+        this.arrived = value;
+    }
+
+    /**
+     * @param value A response that needs no request, such as a cached one.
+     * @return A request that has already completed with the value.
+     */
+    static <T> RemoteRequest<T> completed(T value) {
+        return new RemoteRequest<>(CompletableFuture.completedFuture(value), value);
+    }
+
+    private static synchronized ThreadPoolExecutor requests() {
+        if (requests == null) {
+            requests = new ThreadPoolExecutor(DEFAULT_MAX_REQUESTS, DEFAULT_MAX_REQUESTS,
+                    60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+                        Thread thread = new Thread(r, "marklogic-jena-query");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+            requests.allowCoreThreadTimeOut(true);
+        }
+        return requests;
+    }
+
+    /**
+     * Sets how many requests may wait on the server at once, across
+     * every client in the JVM.
+     * @param max The number of request threads.
+     */
+    static synchronized void setMaxRequests(int max) {
+        if (max < 1) {
+            throw new IllegalArgumentException("At least one query request must be allowed");
+        }
+        ThreadPoolExecutor pool = requests();
+        if (max > pool.getMaximumPoolSize()) {
+            pool.setMaximumPoolSize(max);
+            pool.setCorePoolSize(max);
+        } else {
+            pool.setCorePoolSize(max);
+            pool.setMaximumPoolSize(max);
+        }
+    }
+
+    static synchronized int getMaxRequests() {
+        return requests().getMaximumPoolSize();
+    }
+
+    /**
+     * Waits for the response.
+     * @return The response.
+     * @throws QueryCancelledException if the request was abandoned.
+     * @throws MarkLogicQueryTimeoutException if the server stopped the
+     *         query at its request time limit.
+     */
+    T get() {
+        try {
+            return response.get();
+        } catch (CancellationException e) {
+            throw new QueryCancelledException();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            abandon();
+            throw new QueryCancelledException();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof MarkLogicServerException
+                    && TIME_LIMIT_EXCEEDED.equals(((MarkLogicServerException) cause).getServerMessageCode())) {
+                throw new MarkLogicQueryTimeoutException(
+                        "Query exceeded the MarkLogic request time limit", (Exception) cause);
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new MarkLogicJenaException("Query request failed", e);
+        }
+    }
+
+    /**
+     * Stops waiting for the response and releases it.  A caller blocked
+     * in {@link #get()} gets a QueryCancelledException.  A request not
+     * yet sent is dropped; one already sent keeps running on the server.
+     */
+    void abandon() {
+        T result;
+        synchronized (this) {
+            abandoned = true;
+            result = arrived;
+            arrived = null;
+        }
+        response.cancel(true);
+        discard(result);
+    }
+
+    private static void discard(Object result) {
+        if (!(result instanceof Closeable)) {
+            return;
+        }
+        try {
+            ((Closeable) result).close();
+        } catch (IOException e) {
+            // the response is abandoned either way
+        }
+    }
+}
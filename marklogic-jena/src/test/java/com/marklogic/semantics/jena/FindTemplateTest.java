@@ -0,0 +1,44 @@
+/*
+ * Copyright 2016-2019 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.semantics.jena;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import com.marklogic.semantics.jena.FindTemplate.GraphMode;
+
+public class FindTemplateTest {
+
+    @Test
+    public void testProjection() {
+        assertEquals("SELECT ?s ?p ?o where { ?s ?p ?o }",
+                FindTemplate.get(GraphMode.DEFAULT, false, false, false).getSparql());
+        assertEquals("SELECT ?o where { GRAPH ?g { ?s ?p ?o } }",
+                FindTemplate.get(GraphMode.NAMED, true, true, false).getSparql());
+        assertEquals("?g ?p", FindTemplate.get(GraphMode.ANY, true, false, true).getOrder());
+        assertEquals("SELECT (1 AS ?found) where { ?s ?p ?o }",
+                FindTemplate.get(GraphMode.DEFAULT, true, true, true).getSparql());
+        assertEquals("", FindTemplate.get(GraphMode.NAMED, true, true, true).getOrder());
+    }
+
+    @Test
+    public void testShared() {
+        assertSame(FindTemplate.get(GraphMode.ANY, false, true, false),
+                FindTemplate.get(GraphMode.ANY, false, true, false));
+    }
+}
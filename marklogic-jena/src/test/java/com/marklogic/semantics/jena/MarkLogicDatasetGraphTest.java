@@ -23,7 +23,15 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.jena.datatypes.RDFDatatype;
 import org.apache.jena.graph.Graph;
@@ -31,8 +39,10 @@ import org.apache.jena.graph.Node;
 import org.apache.jena.graph.NodeFactory;
 import org.apache.jena.graph.Triple;
 import org.apache.jena.query.*;
+import org.apache.jena.rdf.listeners.StatementListener;
 import org.apache.jena.rdf.model.Model;
 import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.rdf.model.Statement;
 import org.apache.jena.riot.RDFDataMgr;
 import org.apache.jena.riot.RDFFormat;
 import org.apache.jena.sparql.core.DatasetGraph;
@@ -47,6 +57,10 @@ import org.slf4j.LoggerFactory;
 
 import com.marklogic.client.semantics.Capability;
 import com.marklogic.client.semantics.GraphPermissions;
+import com.marklogic.semantics.jena.client.DeleteStrategy;
+import com.marklogic.semantics.jena.client.FindStrategy;
+import com.marklogic.semantics.jena.client.JenaDatabaseClient;
+import com.marklogic.semantics.jena.client.WriteStrategy;
 
 public class MarkLogicDatasetGraphTest extends JenaTestBase {
 
@@ -416,6 +430,490 @@ public class MarkLogicDatasetGraphTest extends JenaTestBase {
         }
     }
 
+    @Test
+    public void testGraphStoreWriteStrategy() {
+        DatasetGraph datasetGraph = getJenaDatasetGraph("testdata/testData.trig");
+        MarkLogicDatasetGraph dsg = getMarkLogicDatasetGraph();
+        dsg.getDatabaseClient().setWriteStrategy(WriteStrategy.GRAPH_STORE);
+        RDFDataMgr.read(dsg, "testdata/testData.trig");
+        dsg.sync();
+
+        Iterator<Node> jenaGraphs = datasetGraph.listGraphNodes();
+        while (jenaGraphs.hasNext()) {
+            Node graphNode = jenaGraphs.next();
+            assertTrue("Graph store flush must round-trip " + graphNode.getURI(),
+                    datasetGraph.getGraph(graphNode).isIsomorphicWith(dsg.getGraph(graphNode)));
+        }
+        assertTrue(datasetGraph.getDefaultGraph().isIsomorphicWith(dsg.getDefaultGraph()));
+    }
+
+    @Test
+    public void testConstructFindStrategy() {
+        DatasetGraph datasetGraph = getJenaDatasetGraph("testdata/testData.trig");
+        MarkLogicDatasetGraph dsg = getMarkLogicDatasetGraph("testdata/testData.trig");
+        dsg.getDatabaseClient().setFindStrategy(FindStrategy.CONSTRUCT);
+
+        Iterator<Node> jenaGraphs = datasetGraph.listGraphNodes();
+        while (jenaGraphs.hasNext()) {
+            Node graphNode = jenaGraphs.next();
+            assertTrue("CONSTRUCT find must match SELECT for " + graphNode.getURI(),
+                    datasetGraph.getGraph(graphNode).isIsomorphicWith(dsg.getGraph(graphNode)));
+            Iterator<Quad> quads = dsg.find(graphNode, Node.ANY, Node.ANY, Node.ANY);
+            assertEquals(graphNode, quads.next().getGraph());
+        }
+        assertTrue(datasetGraph.getDefaultGraph().isIsomorphicWith(dsg.getDefaultGraph()));
+    }
+
+    @Test
+    public void testValuesDeleteStrategy() {
+        MarkLogicDatasetGraph dsg = getMarkLogicDatasetGraph();
+        dsg.getDatabaseClient().setDeleteStrategy(DeleteStrategy.VALUES);
+        Node g = NodeFactory.createURI("http://example.org/values-delete");
+        Node subj = NodeFactory.createURI("http://s-values");
+        Node pred = NodeFactory.createURI("http://p-values");
+        Node keep = NodeFactory.createLiteral("keep");
+        Node[] objects = new Node[] {
+                NodeFactory.createURI("http://o-values"),
+                NodeFactory.createLiteral("quoted \"value\"\nwith newline"),
+                NodeFactory.createLiteral("chat", "fr"),
+                NodeFactory.createLiteral("42", XSDint) };
+        for (Node o : objects) {
+            dsg.add(g, subj, pred, o);
+            dsg.add(Quad.defaultGraphIRI, subj, pred, o);
+        }
+        dsg.add(g, subj, pred, keep);
+        dsg.sync();
+
+        for (Node o : objects) {
+            dsg.delete(g, subj, pred, o);
+            dsg.delete(Quad.defaultGraphIRI, subj, pred, o);
+        }
+        dsg.sync();
+
+        for (Node o : objects) {
+            assertFalse(dsg.contains(g, subj, pred, o));
+            assertFalse(dsg.contains(Quad.defaultGraphIRI, subj, pred, o));
+        }
+        assertTrue(dsg.contains(g, subj, pred, keep));
+    }
+
+    @Test
+    public void testDeleteAny() {
+        MarkLogicDatasetGraph dsg = getMarkLogicDatasetGraph();
+        Node g1 = NodeFactory.createURI("http://example.org/delete-any-1");
+        Node g2 = NodeFactory.createURI("http://example.org/delete-any-2");
+        Node subj = NodeFactory.createURI("http://s-delete-any");
+        Node p1 = NodeFactory.createURI("http://p1-delete-any");
+        Node p2 = NodeFactory.createURI("http://p2-delete-any");
+        for (int i = 0; i < 10; i++) {
+            Node o = NodeFactory.createLiteral(Integer.toString(i), XSDint);
+            dsg.add(g1, subj, p1, o);
+            dsg.add(g1, subj, p2, o);
+            dsg.add(g2, subj, p1, o);
+            dsg.add(Quad.defaultGraphIRI, subj, p1, o);
+        }
+
+        // pending adds are flushed before the pattern is deleted
+        dsg.deleteAny(g1, subj, p1, Node.ANY);
+        assertFalse(dsg.contains(g1, subj, p1, Node.ANY));
+        assertTrue(dsg.contains(g1, subj, p2, Node.ANY));
+        assertTrue(dsg.contains(g2, subj, p1, Node.ANY));
+
+        dsg.getGraph(g1).clear();
+        assertFalse(dsg.contains(g1, Node.ANY, Node.ANY, Node.ANY));
+
+        dsg.deleteAny(Node.ANY, subj, p1, Node.ANY);
+        assertFalse(dsg.contains(g2, subj, p1, Node.ANY));
+        assertFalse(dsg.contains(Quad.defaultGraphIRI, subj, p1, Node.ANY));
+    }
+
+    @Test
+    public void testStreamingWithoutPeriodicFlush() {
+        MarkLogicDatasetGraph dsg = new MarkLogicDatasetGraph(
+                new JenaDatabaseClient(writerClient, false));
+        Node g = NodeFactory.createURI("http://example.org/streaming");
+        Node subj = NodeFactory.createURI("http://s-streaming");
+        Node pred = NodeFactory.createURI("http://p-streaming");
+        for (int i = 0; i < 1000; i++) {
+            Node o = NodeFactory.createLiteral(Integer.toString(i), XSDint);
+            dsg.add(g, subj, pred, o);
+            dsg.add(Quad.defaultGraphIRI, subj, pred, o);
+        }
+        dsg.delete(g, subj, pred, NodeFactory.createLiteral("0", XSDint));
+        dsg.sync();
+
+        assertEquals(999, dsg.getGraph(g).size());
+        assertTrue(dsg.contains(Quad.defaultGraphIRI, subj, pred,
+                NodeFactory.createLiteral("0", XSDint)));
+        dsg.deleteAny(Quad.defaultGraphIRI, subj, pred, Node.ANY);
+        dsg.close();
+    }
+
+    @Test
+    public void testPagedFind() {
+        MarkLogicDatasetGraph dsg = getMarkLogicDatasetGraph();
+        dsg.getDatabaseClient().setFindPageSize(100);
+        Node g = NodeFactory.createURI("http://example.org/paged");
+        Node subj = NodeFactory.createURI("http://s-paged");
+        Node pred = NodeFactory.createURI("http://p-paged");
+        for (int i = 0; i < 1050; i++) {
+            dsg.add(g, subj, pred, NodeFactory.createLiteral(Integer.toString(i), XSDint));
+        }
+        dsg.sync();
+
+        Graph seen = GraphFactory.createDefaultGraph();
+        Iterator<Quad> quads = dsg.find(g, subj, pred, Node.ANY);
+        while (quads.hasNext()) {
+            Quad quad = quads.next();
+            assertEquals(g, quad.getGraph());
+            seen.add(quad.asTriple());
+        }
+        assertEquals(1050, seen.size());
+
+        int any = 0;
+        quads = dsg.find(Node.ANY, subj, pred, Node.ANY);
+        while (quads.hasNext()) {
+            quads.next();
+            any++;
+        }
+        assertEquals(1050, any);
+    }
+
+    @Test
+    public void testConcurrentPagedFinds() throws Exception {
+        MarkLogicDatasetGraph dsg = getMarkLogicDatasetGraph();
+        dsg.getDatabaseClient().setFindPageSize(10);
+        Node subj = NodeFactory.createURI("http://s-concurrent");
+        Node pred = NodeFactory.createURI("http://p-concurrent");
+        List<Node> graphs = new ArrayList<>();
+        for (int g = 0; g < 4; g++) {
+            Node graph = NodeFactory.createURI("http://example.org/concurrent-" + g);
+            graphs.add(graph);
+            for (int i = 0; i < 25 * (g + 1); i++) {
+                dsg.add(graph, subj, pred, NodeFactory.createLiteral(Integer.toString(i), XSDint));
+            }
+        }
+        dsg.sync();
+
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Integer>> counts = new ArrayList<>();
+            for (int n = 0; n < 16; n++) {
+                Node graph = graphs.get(n % 4);
+                counts.add(pool.submit(() -> {
+                    int count = 0;
+                    Iterator<Quad> quads = dsg.find(graph, subj, pred, Node.ANY);
+                    while (quads.hasNext()) {
+                        quads.next();
+                        count++;
+                    }
+                    return count;
+                }));
+            }
+            for (int n = 0; n < 16; n++) {
+                assertEquals("Concurrent paged finds each see every row",
+                        25 * (n % 4 + 1), (int) counts.get(n).get());
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testOverlayPendingChanges() {
+        MarkLogicDatasetGraph dsg = getMarkLogicDatasetGraph();
+        Node g = NodeFactory.createURI("http://example.org/overlay");
+        Node subj = NodeFactory.createURI("http://s-overlay");
+        Node pred = NodeFactory.createURI("http://p-overlay");
+        Node stored = NodeFactory.createLiteral("stored");
+        Node removed = NodeFactory.createLiteral("removed");
+        Node added = NodeFactory.createLiteral("added");
+        dsg.add(g, subj, pred, stored);
+        dsg.add(g, subj, pred, removed);
+        dsg.add(Quad.defaultGraphIRI, subj, pred, removed);
+        dsg.sync();
+
+        JenaDatabaseClient client = dsg.getDatabaseClient();
+        client.setOverlayPendingChanges(true);
+        client.setTimerCacheInterval(60000);
+        client.setCacheSize(0);
+        dsg.delete(g, subj, pred, removed);
+        dsg.add(g, subj, pred, added);
+        dsg.delete(Quad.defaultGraphIRI, subj, pred, removed);
+        dsg.add(Quad.defaultGraphIRI, subj, pred, added);
+
+        assertTrue(dsg.contains(g, subj, pred, stored));
+        assertTrue(dsg.contains(g, subj, pred, added));
+        assertFalse(dsg.contains(g, subj, pred, removed));
+        assertTrue(dsg.contains(Quad.defaultGraphIRI, subj, pred, added));
+        assertFalse(dsg.contains(Quad.defaultGraphIRI, subj, pred, removed));
+        assertEquals(2, dsg.getGraph(g).size());
+
+        dsg.sync();
+        client.setOverlayPendingChanges(false);
+        assertEquals(2, dsg.getGraph(g).size());
+        assertTrue(dsg.contains(g, subj, pred, added));
+        assertFalse(dsg.contains(Quad.defaultGraphIRI, subj, pred, removed));
+    }
+
+    @Test
+    public void testOverlayGraphView() {
+        MarkLogicDatasetGraph dsg = getMarkLogicDatasetGraph();
+        MarkLogicDatasetGraph other = getMarkLogicDatasetGraph();
+        Node g = NodeFactory.createURI("http://example.org/overlay-view");
+        Node subj = NodeFactory.createURI("http://s-overlay-view");
+        Node pred = NodeFactory.createURI("http://p-overlay-view");
+        Node added = NodeFactory.createLiteral("added");
+        JenaDatabaseClient client = dsg.getDatabaseClient();
+        client.setOverlayPendingChanges(true);
+        client.setTimerCacheInterval(60000);
+        client.setCacheSize(0);
+        try {
+            dsg.add(g, subj, pred, added);
+            dsg.add(Quad.defaultGraphIRI, subj, pred, added);
+
+            Graph graph = dsg.getGraph(g);
+            assertTrue(graph.contains(subj, pred, added));
+            assertEquals(1, graph.find(subj, pred, Node.ANY).toList().size());
+            assertTrue(dsg.getDefaultGraph().contains(subj, pred, added));
+            assertFalse("Getting the graphs flushed nothing",
+                    other.contains(g, subj, pred, added));
+        } finally {
+            dsg.sync();
+            client.setOverlayPendingChanges(false);
+            dsg.removeGraph(g);
+            dsg.delete(Quad.defaultGraphIRI, subj, pred, added);
+            dsg.sync();
+        }
+    }
+
+    @Test
+    public void testFindCache() {
+        MarkLogicDatasetGraph dsg = getMarkLogicDatasetGraph();
+        MarkLogicDatasetGraph other = getMarkLogicDatasetGraph();
+        dsg.setFindCache(100, 60000);
+        Node g = NodeFactory.createURI("http://example.org/find-cache");
+        Node subj = NodeFactory.createURI("http://s-find-cache");
+        Node pred = NodeFactory.createURI("http://p-find-cache");
+        Node first = NodeFactory.createLiteral("first");
+        Node second = NodeFactory.createLiteral("second");
+        dsg.add(g, subj, pred, first);
+        assertTrue(dsg.contains(g, subj, pred, Node.ANY));
+
+        // a change made elsewhere is not seen while the entry is cached
+        other.add(g, subj, pred, second);
+        other.sync();
+        assertEquals(1, dsg.getGraph(g).find(subj, pred, Node.ANY).toList().size());
+        assertEquals(1, dsg.getGraph(g).find(subj, pred, Node.ANY).toList().size());
+
+        // a local change to a matching quad drops the entry
+        dsg.delete(g, subj, pred, first);
+        assertEquals(1, dsg.getGraph(g).find(subj, pred, Node.ANY).toList().size());
+        assertTrue(dsg.contains(g, subj, pred, second));
+
+        // as does a SPARQL update
+        UpdateRequest update = new UpdateRequest().add(
+                "DELETE WHERE { GRAPH <http://example.org/find-cache> { ?s ?p ?o } }");
+        UpdateAction.execute(update, dsg);
+        assertFalse(dsg.contains(g, subj, pred, Node.ANY));
+    }
+
+    @Test
+    public void testContains() {
+        MarkLogicDatasetGraph dsg = getMarkLogicDatasetGraph();
+        Node g = NodeFactory.createURI("http://example.org/contains");
+        Node subj = NodeFactory.createURI("http://s-contains");
+        Node pred = NodeFactory.createURI("http://p-contains");
+        Node obj = NodeFactory.createLiteral("42", XSDint);
+        Node missing = NodeFactory.createURI("http://missing-contains");
+        dsg.add(g, subj, pred, obj);
+        dsg.add(Quad.defaultGraphIRI, subj, pred, missing);
+
+        assertTrue(dsg.contains(g, subj, pred, obj));
+        assertTrue(dsg.contains(g, subj, Node.ANY, Node.ANY));
+        assertTrue(dsg.contains(Node.ANY, Node.ANY, pred, obj));
+        assertFalse(dsg.contains(g, subj, pred, missing));
+        assertTrue(dsg.contains(Quad.defaultGraphIRI, subj, pred, missing));
+        assertFalse(dsg.contains(Quad.defaultGraphIRI, subj, pred, obj));
+
+        Graph graph = dsg.getGraph(g);
+        assertTrue(graph.contains(subj, pred, obj));
+        assertTrue(graph.contains(Triple.create(subj, Node.ANY, Node.ANY)));
+        assertFalse(graph.contains(subj, pred, missing));
+        assertTrue(dsg.getDefaultGraph().contains(subj, pred, missing));
+    }
+
+    @Test
+    public void testSize() {
+        MarkLogicDatasetGraph dsg = getMarkLogicDatasetGraph();
+        dsg.setGraphSizeCache(100, 0);
+        Node g = NodeFactory.createURI("http://example.org/size");
+        Node subj = NodeFactory.createURI("http://s-size");
+        Node pred = NodeFactory.createURI("http://p-size");
+        Graph graph = dsg.getGraph(g);
+        assertTrue(graph.isEmpty());
+        assertEquals(0, dsg.graphSize(g));
+        long graphs = dsg.size();
+
+        for (int i = 0; i < 10; i++) {
+            dsg.add(g, subj, pred, NodeFactory.createLiteral(Integer.toString(i), XSDint));
+        }
+        assertEquals("Buffered adds are counted", 10, dsg.graphSize(g));
+        assertEquals(10, graph.size());
+        assertFalse(graph.isEmpty());
+        assertEquals(graphs + 1, dsg.size());
+
+        dsg.add(g, subj, pred, NodeFactory.createLiteral("0", XSDint));
+        assertEquals("Duplicate add does not change the count", 10, dsg.graphSize(g));
+        dsg.delete(g, subj, pred, NodeFactory.createLiteral("0", XSDint));
+        assertEquals(9, graph.size());
+
+        dsg.removeGraph(g);
+        assertEquals(0, dsg.graphSize(g));
+        assertTrue(graph.isEmpty());
+        assertEquals(graphs, dsg.size());
+    }
+
+    @Test
+    public void testGraphOperations() {
+        MarkLogicDatasetGraph dsg = getMarkLogicDatasetGraph();
+        Node g = NodeFactory.createURI("http://example.org/graph-ops");
+        Node subj = NodeFactory.createURI("http://s-graph-ops");
+        Node pred = NodeFactory.createURI("http://p-graph-ops");
+        Node other = NodeFactory.createURI("http://other-graph-ops");
+        Graph graph = dsg.getGraph(g);
+        assertTrue(graph instanceof MarkLogicGraph);
+
+        Model model = ModelFactory.createModelForGraph(graph);
+        List<Statement> added = new ArrayList<>();
+        model.register(new StatementListener() {
+            @Override
+            public void addedStatement(Statement s) {
+                added.add(s);
+            }
+        });
+        for (int i = 0; i < 5; i++) {
+            graph.add(Triple.create(subj, pred, NodeFactory.createLiteral(Integer.toString(i), XSDint)));
+        }
+        graph.add(Triple.create(other, pred, other));
+        assertEquals("Listeners see each add", 6, added.size());
+        assertEquals(6, graph.find(Node.ANY, pred, Node.ANY).toList().size());
+        assertEquals(5, graph.find(subj, Node.ANY, Node.ANY).toList().size());
+        assertTrue(dsg.contains(g, other, pred, other));
+
+        graph.delete(Triple.create(other, pred, other));
+        assertFalse(graph.contains(other, pred, other));
+        graph.remove(subj, pred, NodeFactory.createLiteral("0", XSDint));
+        assertEquals(4, graph.size());
+
+        graph.clear();
+        assertTrue(graph.isEmpty());
+        assertFalse(dsg.find(g, Node.ANY, Node.ANY, Node.ANY).hasNext());
+
+        Graph defaultGraph = dsg.getDefaultGraph();
+        defaultGraph.add(Triple.create(other, pred, subj));
+        assertTrue(defaultGraph.contains(other, pred, subj));
+        assertFalse(graph.contains(other, pred, subj));
+        assertTrue(dsg.getUnionGraph().contains(other, pred, subj));
+    }
+
+    @Test
+    public void testFindAll() {
+        MarkLogicDatasetGraph dsg = getMarkLogicDatasetGraph();
+        Node g1 = NodeFactory.createURI("http://example.org/find-all-1");
+        Node g2 = NodeFactory.createURI("http://example.org/find-all-2");
+        Node subj = NodeFactory.createURI("http://s-find-all");
+        Node pred = NodeFactory.createURI("http://p-find-all");
+        Node other = NodeFactory.createURI("http://other-find-all");
+        Node lit = NodeFactory.createLiteral("7", XSDint);
+        dsg.add(g1, subj, pred, lit);
+        dsg.add(g1, subj, other, other);
+        dsg.add(g2, subj, pred, other);
+        dsg.add(Quad.defaultGraphIRI, other, pred, subj);
+
+        Quad bySubject = new Quad(g1, subj, Node.ANY, Node.ANY);
+        Quad anyGraph = new Quad(Node.ANY, subj, pred, Node.ANY);
+        Quad exact = new Quad(g2, subj, pred, other);
+        Quad defaultGraph = new Quad(Quad.defaultGraphIRI, Node.ANY, pred, Node.ANY);
+        Quad none = new Quad(g2, other, Node.ANY, Node.ANY);
+        Map<Quad, List<Quad>> found = dsg.findAll(Arrays.asList(
+                bySubject, anyGraph, exact, defaultGraph, none, exact));
+
+        assertEquals(Arrays.asList(bySubject, anyGraph, exact, defaultGraph, none),
+                new ArrayList<>(found.keySet()));
+        assertEquals(2, found.get(bySubject).size());
+        assertTrue(found.get(bySubject).contains(new Quad(g1, subj, pred, lit)));
+        assertEquals(2, found.get(anyGraph).size());
+        assertTrue(found.get(anyGraph).contains(new Quad(g2, subj, pred, other)));
+        assertEquals(Collections.singletonList(exact), found.get(exact));
+        assertEquals(1, found.get(defaultGraph).size());
+        assertEquals(subj, found.get(defaultGraph).get(0).getObject());
+        assertTrue(found.get(none).isEmpty());
+    }
+
+    @Test
+    public void testBuffersInFlight() {
+        MarkLogicDatasetGraph dsg = getMarkLogicDatasetGraph();
+        dsg.getDatabaseClient().setMaxBuffersInFlight(1);
+        Node g = NodeFactory.createURI("http://example.org/inflight");
+        Node subj = NodeFactory.createURI("http://s-inflight");
+        Node pred = NodeFactory.createURI("http://p-inflight");
+        for (int i = 0; i < 1000; i++) {
+            dsg.add(g, subj, pred, NodeFactory.createLiteral(Integer.toString(i), XSDint));
+        }
+        dsg.sync();
+        Iterator<Quad> quads = dsg.find(g, subj, pred, Node.ANY);
+        int i;
+        for (i = 0; quads.hasNext(); i++) {
+            quads.next();
+        }
+        assertEquals("All buffers reached the server before sync() returned", 1000, i);
+    }
+
+    @Test
+    public void testParallelFlush() {
+        MarkLogicDatasetGraph dsg = getMarkLogicDatasetGraph();
+        dsg.getDatabaseClient().setFlushThreads(4);
+        Node subj = NodeFactory.createURI("http://s-parallel");
+        Node pred = NodeFactory.createURI("http://p-parallel");
+        for (int i = 0; i < 1000; i++) {
+            Node g = NodeFactory.createURI("http://example.org/parallel" + (i % 8));
+            dsg.add(g, subj, pred, NodeFactory.createLiteral(Integer.toString(i), XSDint));
+        }
+        // a delete must not overtake the add of the same quad on another thread
+        Node g0 = NodeFactory.createURI("http://example.org/parallel0");
+        dsg.delete(g0, subj, pred, NodeFactory.createLiteral("0", XSDint));
+        dsg.sync();
+        Iterator<Quad> quads = dsg.find(Node.ANY, subj, pred, Node.ANY);
+        int i;
+        for (i = 0; quads.hasNext(); i++) {
+            quads.next();
+        }
+        assertEquals(999, i);
+    }
+
+    @Test
+    public void testInterleavedAddsAndDeletes() {
+        MarkLogicDatasetGraph dsg = getMarkLogicDatasetGraph();
+        Node g = NodeFactory.createURI("http://example.org/interleaved");
+        Node subj = NodeFactory.createURI("http://s-interleaved");
+        Node pred = NodeFactory.createURI("http://p-interleaved");
+        Node before = NodeFactory.createLiteral("before");
+        Node after = NodeFactory.createLiteral("after");
+        dsg.add(g, subj, pred, before);
+        dsg.sync();
+
+        // a property update: the delete and re-add of "before" cancel locally
+        dsg.delete(g, subj, pred, before);
+        dsg.add(g, subj, pred, after);
+        dsg.delete(g, subj, pred, after);
+        dsg.add(g, subj, pred, before);
+        dsg.sync();
+
+        assertTrue(dsg.contains(g, subj, pred, before));
+        assertFalse(dsg.contains(g, subj, pred, after));
+    }
+
     @Test(expected = MarkLogicJenaException.class)
     public void testLifeCycle() {
         MarkLogicDatasetGraph dsg = getMarkLogicDatasetGraph("testdata/testData.trig");
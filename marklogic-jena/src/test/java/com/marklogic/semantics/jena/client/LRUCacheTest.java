@@ -0,0 +1,118 @@
+/*
+ * Copyright 2016-2019 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.semantics.jena.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LRUCacheTest {
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        LRUCache<String, String> cache = new LRUCache<>(2, 0);
+        cache.put("a", "1", cache.version());
+        cache.put("b", "2", cache.version());
+        cache.get("a");
+        cache.put("c", "3", cache.version());
+        assertEquals("1", cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals("3", cache.get("c"));
+    }
+
+    @Test
+    public void testEvictsByWeight() {
+        LRUCache<String, String> cache = new LRUCache<>(10, 10, 0, String::length);
+        cache.put("a", "1234", cache.version());
+        cache.put("b", "1234", cache.version());
+        cache.put("c", "1234", cache.version());
+        assertNull("Oldest dropped to stay under the weight limit", cache.get("a"));
+        assertEquals(8, cache.weight());
+        assertFalse("Too heavy to cache at all", cache.put("d", "12345678901", cache.version()));
+        cache.invalidate(key -> key.equals("b"));
+        assertEquals(4, cache.weight());
+    }
+
+    @Test
+    public void testExpires() throws InterruptedException {
+        LRUCache<String, String> cache = new LRUCache<>(10, 1);
+        cache.put("a", "1", cache.version());
+        Thread.sleep(5);
+        assertNull(cache.get("a"));
+    }
+
+    @Test
+    public void testInvalidate() {
+        LRUCache<String, String> cache = new LRUCache<>(10, 0);
+        long version = cache.version();
+        cache.put("apple", "1", version);
+        cache.put("banana", "2", version);
+        cache.invalidate(key -> key.startsWith("a"));
+        assertNull(cache.get("apple"));
+        assertEquals("2", cache.get("banana"));
+        // computed before the invalidation, so not stored
+        assertFalse(cache.put("cherry", "3", version));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testInvalidateGroup() {
+        // keys are "group/name"; a key with no group spans them all
+        LRUCache<String, String> cache = new LRUCache<>(10, 0,
+                key -> key.contains("/") ? key.substring(0, key.indexOf('/')) : null);
+        long version = cache.version();
+        cache.put("g1/a", "1", version);
+        cache.put("g2/a", "2", version);
+        cache.put("all", "3", version);
+        cache.invalidateGroup("g1");
+        assertNull(cache.get("g1/a"));
+        assertNull("Keys in no group go with any group", cache.get("all"));
+        assertEquals("2", cache.get("g2/a"));
+        // computed before the invalidation
+        assertFalse(cache.put("g1/b", "4", version));
+        assertTrue("Another group is unaffected", cache.put("g2/b", "5", version));
+        assertTrue(cache.put("g1/b", "4", cache.version()));
+        assertEquals(3, cache.size());
+
+        cache.invalidateGroup(null);
+        assertNull(cache.get("g2/a"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testGroupStampsBounded() {
+        LRUCache<String, String> cache = new LRUCache<>(4, 0,
+                key -> key.substring(0, key.indexOf('/')));
+        long before = cache.version();
+        for (int i = 0; i < 1000; i++) {
+            long version = cache.version();
+            cache.put("g" + i + "/a", "x", version);
+            cache.invalidateGroup("g" + i);
+            cache.invalidateGroup("empty" + i);
+            assertTrue(cache.groupStamps() <= 8);
+        }
+        assertEquals(0, cache.size());
+        // a recently invalidated group still turns away stale values,
+        // and an older one with no stamp left does too
+        assertFalse(cache.put("g999/b", "y", before));
+        assertFalse(cache.put("g0/b", "y", before));
+        assertTrue(cache.put("g0/b", "y", cache.version()));
+        assertEquals("y", cache.get("g0/b"));
+    }
+}
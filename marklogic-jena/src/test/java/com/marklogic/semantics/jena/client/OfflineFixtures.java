@@ -0,0 +1,44 @@
+/*
+ * Copyright 2016-2019 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.semantics.jena.client;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+
+import com.marklogic.client.DatabaseClient;
+import com.marklogic.client.DatabaseClientFactory;
+
+/*
+ * Shared fixtures for the client tests that need no server.
+ */
+final class OfflineFixtures {
+
+    private OfflineFixtures() {
+    }
+
+    /*
+     * A client for a server that is never contacted: nothing connects
+     * until a request is sent, and the tests intercept those.
+     */
+    static DatabaseClient databaseClient() {
+        return DatabaseClientFactory.newClient("localhost", 8000,
+                new DatabaseClientFactory.DigestAuthContext("user", "password"));
+    }
+
+    static Node uri(String local) {
+        return NodeFactory.createURI("http://example.org/" + local);
+    }
+}
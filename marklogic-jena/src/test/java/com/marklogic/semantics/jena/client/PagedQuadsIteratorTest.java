@@ -0,0 +1,121 @@
+/*
+ * Copyright 2016-2019 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.semantics.jena.client;
+
+import static com.marklogic.semantics.jena.client.OfflineFixtures.databaseClient;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jena.sparql.core.Quad;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.marklogic.client.io.InputStreamHandle;
+import com.marklogic.client.semantics.SPARQLQueryDefinition;
+
+public class PagedQuadsIteratorTest {
+
+    private static final long PAGE_SIZE = 2;
+
+    private final CountDownLatch prefetching = new CountDownLatch(1);
+    private final CountDownLatch interrupted = new CountDownLatch(1);
+    private volatile long rows;
+    private volatile boolean blockPrefetch;
+    private JenaDatabaseClient client;
+
+    /*
+     * A client that answers each page locally from a result of rows
+     * quads, optionally holding every page after the first until the
+     * fetching thread is interrupted.
+     */
+    @Before
+    public void setUp() {
+        client = new JenaDatabaseClient(databaseClient(), false) {
+            @Override
+            public InputStreamHandle executeSelect(SPARQLQueryDefinition qdef,
+                    InputStreamHandle handle, Long offset, Long limit) {
+                if (offset > 1 && blockPrefetch) {
+                    prefetching.countDown();
+                    try {
+                        new CountDownLatch(1).await();
+                    } catch (InterruptedException e) {
+                        interrupted.countDown();
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                long count = Math.max(0, Math.min(limit, rows - offset + 1));
+                return handle.with(page(offset, count));
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+        client.close();
+    }
+
+    private static ByteArrayInputStream page(long start, long count) {
+        StringBuilder sb = new StringBuilder(
+                "{ \"head\": { \"vars\": [ \"s\", \"p\", \"o\" ] }, \"results\": { \"bindings\": [");
+        for (long i = 0; i < count; i++) {
+            sb.append(i == 0 ? "" : ",")
+                    .append(" { \"s\": { \"type\": \"uri\", \"value\": \"http://s")
+                    .append(start + i)
+                    .append("\" }, \"p\": { \"type\": \"uri\", \"value\": \"http://p\" },")
+                    .append(" \"o\": { \"type\": \"literal\", \"value\": \"o\" } }");
+        }
+        sb.append(" ] } }");
+        return new ByteArrayInputStream(sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private PagedQuadsIterator quads() {
+        return new PagedQuadsIterator(client, client.newQueryDefinition(""),
+                "http://example.org/g", PAGE_SIZE);
+    }
+
+    @Test
+    public void testReadsEveryPage() {
+        rows = 5;
+        PagedQuadsIterator quads = quads();
+        int n = 0;
+        while (quads.hasNext()) {
+            Quad quad = quads.next();
+            n++;
+            assertEquals("http://s" + n, quad.getSubject().getURI());
+        }
+        assertEquals(5, n);
+    }
+
+    @Test
+    public void testCloseCancelsPrefetch() throws InterruptedException {
+        rows = 10;
+        blockPrefetch = true;
+        PagedQuadsIterator quads = quads();
+        assertTrue(quads.hasNext());
+        quads.next();
+        assertTrue("second page never requested", prefetching.await(5, TimeUnit.SECONDS));
+        quads.close();
+        assertTrue("prefetch still running after close", interrupted.await(5, TimeUnit.SECONDS));
+        assertFalse(quads.hasNext());
+    }
+}
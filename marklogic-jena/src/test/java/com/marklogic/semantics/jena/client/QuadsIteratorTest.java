@@ -0,0 +1,125 @@
+/*
+ * Copyright 2016-2019 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.semantics.jena.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.jena.datatypes.xsd.XSDDatatype;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.sparql.core.Quad;
+import org.junit.Test;
+
+public class QuadsIteratorTest {
+
+    private static InputStream json(String s) {
+        return new ByteArrayInputStream(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testStreamingParse() {
+        QuadsIterator quads = new QuadsIterator("http://example.org/g", json(
+                "{ \"head\": { \"vars\": [ \"s\", \"p\", \"o\" ] },"
+                + " \"results\": { \"bindings\": ["
+                + " { \"s\": { \"type\": \"uri\", \"value\": \"http://s\" },"
+                + "   \"p\": { \"type\": \"uri\", \"value\": \"http://p\" },"
+                + "   \"o\": { \"type\": \"literal\", \"value\": \"1\","
+                + "            \"datatype\": \"http://www.w3.org/2001/XMLSchema#int\" } },"
+                + " { \"s\": { \"type\": \"bnode\", \"value\": \"b0\" },"
+                + "   \"extra\": { \"type\": \"uri\", \"value\": \"http://ignored\" },"
+                + "   \"p\": { \"type\": \"uri\", \"value\": \"http://p\" },"
+                + "   \"o\": { \"type\": \"literal\", \"value\": \"chat\", \"xml:lang\": \"fr\" } }"
+                + " ] } }"));
+        assertTrue(quads.hasNext());
+        Quad first = quads.next();
+        assertEquals(NodeFactory.createURI("http://example.org/g"), first.getGraph());
+        assertEquals(NodeFactory.createURI("http://s"), first.getSubject());
+        assertEquals(NodeFactory.createLiteral("1", XSDDatatype.XSDint), first.getObject());
+        Quad second = quads.next();
+        assertTrue(second.getSubject().isBlank());
+        assertEquals(NodeFactory.createLiteral("chat", "fr"), second.getObject());
+        assertFalse(quads.hasNext());
+    }
+
+    @Test
+    public void testGraphVariable() {
+        QuadsIterator quads = new QuadsIterator(json(
+                "{ \"results\": { \"bindings\": ["
+                + " { \"g\": { \"type\": \"uri\", \"value\": \"http://g\" },"
+                + "   \"s\": { \"type\": \"uri\", \"value\": \"http://s\" },"
+                + "   \"p\": { \"type\": \"uri\", \"value\": \"http://p\" },"
+                + "   \"o\": { \"type\": \"literal\", \"value\": \"plain\" } } ] },"
+                + " \"head\": { \"vars\": [ \"g\", \"s\", \"p\", \"o\" ] } }"));
+        Quad quad = quads.next();
+        assertEquals(NodeFactory.createURI("http://g"), quad.getGraph());
+        assertEquals(NodeFactory.createLiteral("plain"), quad.getObject());
+        assertFalse(quads.hasNext());
+    }
+
+    @Test
+    public void testFixedTerms() {
+        Node g = NodeFactory.createURI("http://g");
+        Node s = NodeFactory.createURI("http://s");
+        QuadsIterator quads = new QuadsIterator(new Node[] { g, s, null, null }, json(
+                "{ \"head\": { \"vars\": [ \"p\", \"o\" ] },"
+                + " \"results\": { \"bindings\": ["
+                + " { \"p\": { \"type\": \"uri\", \"value\": \"http://p\" },"
+                + "   \"o\": { \"type\": \"uri\", \"value\": \"http://o\" } } ] } }"));
+        assertEquals(new Quad(g, s, NodeFactory.createURI("http://p"), NodeFactory.createURI("http://o")),
+                quads.next());
+        assertFalse(quads.hasNext());
+    }
+
+    @Test
+    public void testEmptyResults() {
+        assertFalse(new QuadsIterator(json(
+                "{ \"head\": { \"vars\": [] }, \"results\": { \"bindings\": [] } }")).hasNext());
+    }
+
+    @Test
+    public void testCloseReleasesStream() {
+        boolean[] closed = { false };
+        InputStream in = new ByteArrayInputStream((
+                "{ \"head\": { \"vars\": [ \"s\", \"p\", \"o\" ] },"
+                + " \"results\": { \"bindings\": ["
+                + " { \"s\": { \"type\": \"uri\", \"value\": \"http://s\" },"
+                + "   \"p\": { \"type\": \"uri\", \"value\": \"http://p\" },"
+                + "   \"o\": { \"type\": \"literal\", \"value\": \"1\" } },"
+                + " { \"s\": { \"type\": \"uri\", \"value\": \"http://s2\" },"
+                + "   \"p\": { \"type\": \"uri\", \"value\": \"http://p\" },"
+                + "   \"o\": { \"type\": \"literal\", \"value\": \"2\" } } ] } }")
+                .getBytes(StandardCharsets.UTF_8)) {
+            @Override
+            public void close() throws IOException {
+                closed[0] = true;
+                super.close();
+            }
+        };
+        QuadsIterator quads = new QuadsIterator("http://example.org/g", in);
+        quads.next();
+        quads.close();
+        assertTrue(closed[0]);
+        assertFalse(quads.hasNext());
+        quads.close();
+    }
+}
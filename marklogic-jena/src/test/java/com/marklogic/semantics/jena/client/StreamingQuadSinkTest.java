@@ -0,0 +1,105 @@
+/*
+ * Copyright 2016-2019 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.semantics.jena.client;
+
+import static com.marklogic.semantics.jena.client.OfflineFixtures.databaseClient;
+import static com.marklogic.semantics.jena.client.OfflineFixtures.uri;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.jena.graph.Node;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.marklogic.client.Transaction;
+import com.marklogic.client.io.OutputStreamSender;
+
+public class StreamingQuadSinkTest {
+
+    private final AtomicInteger open = new AtomicInteger();
+    private final AtomicInteger mostOpen = new AtomicInteger();
+    private final Map<String, StringBuilder> received = new ConcurrentHashMap<>();
+    private JenaDatabaseClient client;
+    private StreamingQuadSink sink;
+
+    /*
+     * A client whose merge requests read the body locally instead of
+     * sending it.
+     */
+    @Before
+    public void setUp() {
+        client = new JenaDatabaseClient(databaseClient(), false) {
+            @Override
+            void mergeGraph(String uri, OutputStreamSender sender, Transaction transaction) {
+                mostOpen.accumulateAndGet(open.incrementAndGet(), Math::max);
+                try {
+                    ByteArrayOutputStream body = new ByteArrayOutputStream();
+                    sender.write(body);
+                    received.computeIfAbsent(uri, k -> new StringBuilder())
+                            .append(new String(body.toByteArray(), StandardCharsets.UTF_8));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                } finally {
+                    open.decrementAndGet();
+                }
+            }
+        };
+        sink = new StreamingQuadSink(client);
+    }
+
+    @After
+    public void tearDown() {
+        sink.shutdown();
+        client.close();
+    }
+
+    @Test
+    public void testStreamsBounded() {
+        sink.setMaxStreams(2);
+        for (int i = 0; i < 10; i++) {
+            sink.add(uri("g" + i), uri("s"), uri("p"), uri("o" + i));
+            sink.add(uri("g" + (i + 1) % 10), uri("s"), uri("p"), uri("o" + i));
+            assertTrue(sink.openStreams() <= 2);
+        }
+        sink.closeAll();
+        assertTrue("No more than two requests open at once", mostOpen.get() <= 2);
+        int lines = 0;
+        for (StringBuilder body : received.values()) {
+            lines += body.toString().split("\n").length;
+        }
+        assertEquals("Every quad sent once its request was finished", 20, lines);
+    }
+
+    @Test
+    public void testLoweringLimitFinishesStreams() {
+        for (int i = 0; i < 4; i++) {
+            sink.add(uri("g" + i), uri("s"), uri("p"), uri("o"));
+        }
+        assertEquals(4, sink.openStreams());
+        sink.setMaxStreams(1);
+        assertEquals(1, sink.openStreams());
+        assertEquals(3, received.size());
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2016-2019 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.semantics.jena.client;
+
+import static com.marklogic.semantics.jena.client.OfflineFixtures.databaseClient;
+import static com.marklogic.semantics.jena.client.OfflineFixtures.uri;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.jena.graph.Node;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.marklogic.semantics.jena.MarkLogicFlushException;
+
+/*
+ * Buffer behaviour that needs no server: the clients are never asked to
+ * send anything, and the buffers under test flush to latches.
+ */
+public class TripleBufferTest {
+
+    private ScheduledExecutorService scheduler;
+    private JenaDatabaseClient clientA;
+    private JenaDatabaseClient clientB;
+
+    private static JenaDatabaseClient offlineClient(ScheduledExecutorService scheduler) {
+        return new JenaDatabaseClient(databaseClient(), true, scheduler);
+    }
+
+    /*
+     * A buffer whose flushes wait for a latch and then count down another.
+     */
+    private static class LatchedBuffer extends TripleBuffer {
+        final CountDownLatch release;
+        final CountDownLatch flushed;
+
+        LatchedBuffer(JenaDatabaseClient client, CountDownLatch release, CountDownLatch flushed) {
+            super(client);
+            this.release = release;
+            this.flushed = flushed;
+        }
+
+        @Override
+        protected void flush(TriplesHashMap batch) {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            flushed.countDown();
+        }
+    }
+
+    @Before
+    public void setUp() {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        clientA = offlineClient(scheduler);
+        clientB = offlineClient(scheduler);
+    }
+
+    @After
+    public void tearDown() {
+        clientA.close();
+        clientB.close();
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void testTickSkipsBlockedWriter() throws Exception {
+        CountDownLatch releaseA = new CountDownLatch(1);
+        LatchedBuffer bufferA = new LatchedBuffer(clientA, releaseA, new CountDownLatch(2));
+        LatchedBuffer bufferB = new LatchedBuffer(clientB, new CountDownLatch(0), new CountDownLatch(1));
+        clientA.getBufferFlusher().setMaxInFlight(1);
+        bufferA.setCacheSize(1);
+        bufferB.setCacheInterval(0);
+
+        // the first full buffer occupies A's only lane
+        bufferA.add(null, uri("s1"), uri("p"), uri("o"));
+        bufferA.add(null, uri("s2"), uri("p"), uri("o"));
+        // the second blocks its writer in add() until that flush ends
+        Thread writer = new Thread(() -> {
+            bufferA.add(null, uri("s3"), uri("p"), uri("o"));
+            bufferA.add(null, uri("s4"), uri("p"), uri("o"));
+        });
+        writer.start();
+        while (writer.getState() != Thread.State.WAITING) {
+            Thread.sleep(5);
+        }
+
+        bufferB.add(null, uri("s"), uri("p"), uri("o"));
+        Thread.sleep(5);
+        ExecutorService tick = Executors.newSingleThreadExecutor();
+        try {
+            // one shared scheduler thread ticks both clients in turn
+            tick.execute(() -> {
+                bufferA.run();
+                bufferB.run();
+            });
+            assertTrue("B flushes while A's writer is blocked",
+                    bufferB.flushed.await(5, TimeUnit.SECONDS));
+            assertEquals(Thread.State.WAITING, writer.getState());
+        } finally {
+            releaseA.countDown();
+            writer.join(5000);
+            tick.shutdownNow();
+        }
+        assertTrue(bufferA.flushed.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testFailedFlushIsSticky() {
+        AtomicBoolean failing = new AtomicBoolean(true);
+        TripleBuffer buffer = new TripleBuffer(clientA) {
+            @Override
+            protected void flush(TriplesHashMap batch) {
+                if (failing.get()) {
+                    throw new IllegalStateException("injected");
+                }
+            }
+        };
+        buffer.add(null, uri("s1"), uri("p"), uri("o"));
+        buffer.add(uri("g"), uri("s2"), uri("p"), uri("o"));
+        for (int i = 0; i < 2; i++) {
+            try {
+                buffer.forceRun();
+                fail("Flush failure reported");
+            } catch (MarkLogicFlushException e) {
+                assertEquals(2, e.getLostTriples());
+                assertEquals("injected", e.getCause().getMessage());
+            }
+        }
+        try {
+            buffer.add(null, uri("s3"), uri("p"), uri("o"));
+            fail("Writes refused until the failure is cleared");
+        } catch (MarkLogicFlushException e) {
+            assertEquals(2, e.getLostTriples());
+        }
+
+        clientA.clearFlushFailure();
+        failing.set(false);
+        buffer.add(null, uri("s3"), uri("p"), uri("o"));
+        buffer.forceRun();
+    }
+
+    /*
+     * Drives the adaptive threshold directly with made-up flush
+     * latencies; nothing is sent.
+     */
+    private LatchedBuffer adaptiveBuffer(long min, long max, long targetMillis) {
+        LatchedBuffer buffer = new LatchedBuffer(clientA, new CountDownLatch(0), new CountDownLatch(1));
+        buffer.setAdaptiveCacheSize(min, max, targetMillis);
+        return buffer;
+    }
+
+    @Test
+    public void testAdaptiveStepsHalfway() {
+        LatchedBuffer buffer = adaptiveBuffer(10, 1000, 100);
+        assertEquals(199, buffer.getCacheSize());
+        // 199 triples in 50ms: 398 would have taken 100ms
+        buffer.flushed(199, 1, true, 50);
+        assertEquals((199 + 398) / 2, buffer.getCacheSize());
+        // 298 triples in 200ms: 149 would have
+        buffer.flushed(298, 1, true, 200);
+        assertEquals((298 + 149) / 2, buffer.getCacheSize());
+        // a part of a split buffer speaks for the whole buffer
+        buffer.flushed(50, 4, true, 100);
+        assertEquals((223 + 200) / 2, buffer.getCacheSize());
+        assertEquals(100, buffer.getLastFlushMillis());
+    }
+
+    @Test
+    public void testAdaptiveClamped() {
+        LatchedBuffer buffer = adaptiveBuffer(150, 250, 100);
+        buffer.flushed(199, 1, true, 1);
+        assertEquals(250, buffer.getCacheSize());
+        buffer.flushed(250, 1, true, 100000);
+        assertEquals(150, buffer.getCacheSize());
+        // the starting size is clamped too
+        assertEquals(300, adaptiveBuffer(300, 400, 100).getCacheSize());
+        assertEquals(100, adaptiveBuffer(50, 100, 100).getCacheSize());
+    }
+
+    @Test
+    public void testTimerBatchesOnlyShrink() {
+        LatchedBuffer buffer = adaptiveBuffer(10, 1000, 100);
+        // a small batch sent by the timer was quick, but says little
+        // about how large a batch could be
+        buffer.flushed(5, 1, false, 10);
+        assertEquals(199, buffer.getCacheSize());
+        // a slow one still shrinks the threshold
+        buffer.flushed(100, 1, false, 400);
+        assertEquals((199 + 25) / 2, buffer.getCacheSize());
+    }
+
+    @Test
+    public void testFixedSizeIgnoresLatency() {
+        LatchedBuffer buffer = adaptiveBuffer(10, 1000, 100);
+        buffer.setCacheSize(500);
+        buffer.flushed(500, 1, true, 1);
+        buffer.flushed(500, 1, true, 10000);
+        assertEquals(500, buffer.getCacheSize());
+        assertEquals(10000, buffer.getLastFlushMillis());
+        assertEquals(0.8 * 1 + 0.2 * 10000, buffer.getAverageFlushMillis(), 0.001);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testAdaptiveBoundsChecked() {
+        adaptiveBuffer(100, 10, 100);
+    }
+}
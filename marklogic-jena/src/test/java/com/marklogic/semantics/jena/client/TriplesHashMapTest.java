@@ -0,0 +1,127 @@
+/*
+ * Copyright 2016-2019 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.semantics.jena.client;
+
+import static com.marklogic.semantics.jena.client.OfflineFixtures.uri;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.jena.datatypes.xsd.XSDDatatype;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.junit.Test;
+
+import com.marklogic.semantics.jena.client.TripleBuffer.TriplesHashMap;
+
+/*
+ * The running triple and byte totals that the flush thresholds are
+ * checked against.
+ */
+public class TriplesHashMapTest {
+
+    private static Triple triple(String s, Node o) {
+        return Triple.create(uri(s), uri("p"), o);
+    }
+
+    @Test
+    public void testEstimateBytes() {
+        // <http://example.org/s> <http://example.org/p> <http://example.org/o> .
+        assertEquals(22 + 22 + 22 + 4, TripleBuffer.estimateBytes(triple("s", uri("o"))));
+        // "chat"@fr
+        assertEquals(22 + 22 + 9 + 4,
+                TripleBuffer.estimateBytes(triple("s", NodeFactory.createLiteral("chat", "fr"))));
+        // "1"^^<http://www.w3.org/2001/XMLSchema#int>
+        assertEquals(22 + 22 + 3 + XSDDatatype.XSDint.getURI().length() + 4 + 4,
+                TripleBuffer.estimateBytes(triple("s", NodeFactory.createLiteral("1", XSDDatatype.XSDint))));
+    }
+
+    @Test
+    public void testRunningTotals() {
+        TriplesHashMap map = new TriplesHashMap();
+        Triple t1 = triple("s1", uri("o"));
+        Triple t2 = triple("s2", NodeFactory.createLiteral("chat", "fr"));
+        map.add(uri("g1"), t1);
+        map.add(uri("g2"), t2);
+        assertEquals(2, map.triplesCount());
+        assertEquals(TripleBuffer.estimateBytes(t1) + TripleBuffer.estimateBytes(t2), map.bytesCount());
+
+        // a triple already in its graph is not counted twice
+        map.add(uri("g1"), t1);
+        assertEquals(2, map.triplesCount());
+        assertEquals(TripleBuffer.estimateBytes(t1) + TripleBuffer.estimateBytes(t2), map.bytesCount());
+
+        // but the same triple in another graph is
+        map.add(uri("g2"), t1);
+        assertEquals(3, map.triplesCount());
+    }
+
+    @Test
+    public void testRemoveTriple() {
+        TriplesHashMap map = new TriplesHashMap();
+        Triple t1 = triple("s1", uri("o"));
+        Triple t2 = triple("s2", uri("o"));
+        map.add(uri("g"), t1);
+        map.add(uri("g"), t2);
+
+        assertFalse(map.removeTriple(uri("other"), t1));
+        assertFalse(map.removeTriple(uri("g"), triple("s3", uri("o"))));
+        assertEquals(2, map.triplesCount());
+
+        assertTrue(map.removeTriple(uri("g"), t1));
+        assertEquals(1, map.triplesCount());
+        assertEquals(TripleBuffer.estimateBytes(t2), map.bytesCount());
+
+        // the last triple out takes its graph with it
+        assertTrue(map.removeTriple(uri("g"), t2));
+        assertEquals(0, map.triplesCount());
+        assertEquals(0, map.bytesCount());
+        assertNull(map.get(uri("g")));
+        assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void testPartition() {
+        TriplesHashMap map = new TriplesHashMap();
+        for (int g = 0; g < 8; g++) {
+            for (int s = 0; s <= g; s++) {
+                map.add(uri("g" + g), triple("s" + s, uri("o")));
+            }
+        }
+        assertSame(map, map.partition(1)[0]);
+
+        TriplesHashMap[] parts = map.partition(3);
+        assertEquals(3, parts.length);
+        long triples = 0;
+        int graphs = 0;
+        for (TriplesHashMap part : parts) {
+            long inPart = 0;
+            for (Node g : part.keySet()) {
+                // each graph lands whole in a single part
+                assertSame(map.get(g), part.get(g));
+                inPart += part.get(g).size();
+            }
+            assertEquals(inPart, part.triplesCount());
+            triples += part.triplesCount();
+            graphs += part.size();
+        }
+        assertEquals(map.triplesCount(), triples);
+        assertEquals(map.size(), graphs);
+    }
+}
@@ -18,18 +18,23 @@ package com.marklogic.semantics.jena.engine;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.junit.Before;
 import org.junit.Test;
 import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
 import org.apache.jena.graph.NodeFactory;
 import org.apache.jena.graph.Triple;
 import org.apache.jena.query.Dataset;
 import org.apache.jena.query.DatasetFactory;
 import org.apache.jena.query.Query;
+import org.apache.jena.query.QueryCancelledException;
 import org.apache.jena.query.QueryExecution;
 import org.apache.jena.query.QueryExecutionFactory;
 import org.apache.jena.query.QueryFactory;
@@ -41,11 +46,13 @@ import org.apache.jena.rdf.model.Model;
 import org.apache.jena.rdf.model.ModelFactory;
 import org.apache.jena.rdf.model.ResourceFactory;
 import org.apache.jena.sparql.graph.GraphFactory;
+import org.apache.jena.update.UpdateAction;
 
 import com.marklogic.client.ResourceNotFoundException;
 import com.marklogic.client.semantics.SPARQLRuleset;
 import com.marklogic.semantics.jena.JenaTestBase;
 import com.marklogic.semantics.jena.MarkLogicDatasetGraph;
+import com.marklogic.semantics.jena.MarkLogicPreparedQuery;
 
 public class MarkLogicQueryEngineTest extends JenaTestBase {
 
@@ -73,6 +80,44 @@ public class MarkLogicQueryEngineTest extends JenaTestBase {
         }
     }
 
+    @Test
+    public void testSelectClosedEarly() {
+        for (int n = 0; n < 20; n++) {
+            QueryExecution qe = QueryExecutionFactory.create(
+                    "select ?s ?p ?o where { ?s ?p ?o }", ds);
+            ResultSet results = qe.execSelect();
+            assertTrue(results.hasNext());
+            results.next();
+            qe.close();
+        }
+        QueryExecution qe = QueryExecutionFactory.create(
+                "select (count(*) as ?c) where { ?s ?p ?o }", ds);
+        ResultSet results = qe.execSelect();
+        assertTrue("Queries still run after abandoned results",
+                results.next().getLiteral("c").getInt() > 1);
+        qe.close();
+    }
+
+    @Test
+    public void testTimeout() {
+        QueryExecution qe = QueryExecution.dataset(ds)
+                .query("select * where { ?a ?b ?c . ?d ?e ?f . ?g ?h ?i . ?j ?k ?l }")
+                .timeout(1, TimeUnit.MILLISECONDS).build();
+        try {
+            ResultSet results = qe.execSelect();
+            while (results.hasNext()) {
+                results.next();
+            }
+            fail("Query should have timed out");
+        } catch (QueryCancelledException e) {
+            // the wait for MarkLogic was abandoned
+        } finally {
+            qe.close();
+        }
+        qe = QueryExecutionFactory.create("ASK WHERE { ?s ?p ?o }", ds);
+        assertTrue("Queries still run after a timeout", qe.execAsk());
+    }
+
     @Test
     public void testAsk() {
         QueryExecution queryExec = QueryExecutionFactory.create(
@@ -108,6 +153,20 @@ public class MarkLogicQueryEngineTest extends JenaTestBase {
                 .size() > 0);
     }
 
+    @Test
+    public void testConstructRunTwice() {
+        Query query = QueryFactory
+                .create("PREFIX : <http://example.org/> CONSTRUCT { :r100 ?p ?o } WHERE { :r1 ?p ?o }");
+        String sparql = query.toString();
+        Model first = QueryExecutionFactory.create(query, ds).execConstruct();
+        Model second = QueryExecutionFactory.create(query, ds).execConstruct();
+        assertTrue(first.size() > 0);
+        assertTrue("Same results on every run", first.isIsomorphicWith(second));
+        assertTrue("Built from the query's own template", first.contains(
+                ResourceFactory.createResource("http://example.org/r100"), null));
+        assertEquals("Query left as it was", sparql, query.toString());
+    }
+
     @Test
     public void testPagination() {
         Query query = QueryFactory
@@ -142,6 +201,139 @@ public class MarkLogicQueryEngineTest extends JenaTestBase {
 
     }
 
+    @Test
+    public void testQueryNotModified() {
+        Query query = QueryFactory
+                .create("prefix : <http://example.org/> select ?p ?o where { :r1 ?p ?o} limit 2 offset 1");
+        for (int n = 0; n < 2; n++) {
+            QueryExecution queryExec = QueryExecutionFactory.create(query, ds);
+            ResultSet results = queryExec.execSelect();
+            int i;
+            for (i = 0; results.hasNext(); i++) {
+                results.next();
+            }
+            assertEquals("Limit applied on every run", 2, i);
+        }
+        assertEquals(2, query.getLimit());
+        assertEquals(1, query.getOffset());
+    }
+
+    @Test
+    public void testPreparedQuery() {
+        MarkLogicDatasetGraph dsg = (MarkLogicDatasetGraph) ds.asDatasetGraph();
+        MarkLogicPreparedQuery prepared = dsg
+                .prepareQuery("select ?p ?o where { ?s ?p ?o } limit 3");
+        assertFalse(prepared.getSparql().toLowerCase().contains("limit"));
+        QuerySolutionMap bindings = new QuerySolutionMap();
+        bindings.add("s", ResourceFactory.createResource("http://example.org/r1"));
+        int i;
+        ResultSet results = prepared.execSelect(bindings);
+        for (i = 0; results.hasNext(); i++) {
+            QuerySolution qs = results.next();
+            assertTrue(qs.contains("p"));
+            assertTrue(qs.contains("o"));
+        }
+        assertEquals("Query's own limit applies", 3, i);
+        results = prepared.execSelect(bindings, 1, Query.NOLIMIT);
+        for (i = 0; results.hasNext(); i++) {
+            results.next();
+        }
+        assertEquals("Offset given per execution", 3, i);
+
+        MarkLogicPreparedQuery ask = dsg.prepareQuery("ASK WHERE { ?s ?p ?o }");
+        assertTrue(ask.execAsk(bindings));
+        bindings.add("s", ResourceFactory.createResource("http://example.org/missing"));
+        assertFalse(ask.execAsk(bindings));
+    }
+
+    @Test
+    public void testPreparedConstructLimit() {
+        MarkLogicDatasetGraph dsg = (MarkLogicDatasetGraph) ds.asDatasetGraph();
+        MarkLogicPreparedQuery prepared = dsg.prepareQuery(
+                "prefix : <http://example.org/> construct { :r100 ?p ?o } where { :r1 ?p ?o } limit 2");
+        assertFalse(prepared.getSparql().toLowerCase().contains("limit"));
+        Graph graph = prepared.execGraph(null);
+        assertEquals("Query's own limit applies", 2, graph.size());
+        assertTrue("Built from the query's own template", graph.contains(
+                NodeFactory.createURI("http://example.org/r100"), Node.ANY, Node.ANY));
+    }
+
+    @Test
+    public void testQueryCache() {
+        MarkLogicDatasetGraph dsg = (MarkLogicDatasetGraph) ds.asDatasetGraph();
+        dsg.setQueryCache(10, 1 << 20, 0);
+        String count = "prefix : <http://example.org/> select (count(*) as ?c) where { graph :cached { ?s ?p ?o } }";
+        String ask = "prefix : <http://example.org/> ask where { graph :cached { :r9 :p9 ?o } }";
+        try {
+            assertEquals(0, countOf(count));
+            assertEquals(0, countOf(count));
+            assertFalse(QueryExecutionFactory.create(ask, ds).execAsk());
+            assertEquals("Both queries cached", 2, dsg.getQueryCache().size());
+
+            QuerySolutionMap bindings = new QuerySolutionMap();
+            bindings.add("s", ResourceFactory.createResource("http://example.org/r9"));
+            QueryExecution bound = QueryExecutionFactory.create(count, ds, bindings);
+            bound.execSelect().next();
+            assertEquals("Bindings are part of the key", 3, dsg.getQueryCache().size());
+
+            dsg.add(NodeFactory.createURI("http://example.org/cached"),
+                    NodeFactory.createURI("http://example.org/r9"),
+                    NodeFactory.createURI("http://example.org/p9"),
+                    NodeFactory.createLiteral("9"));
+            assertEquals("Local add clears the cache", 0, dsg.getQueryCache().size());
+            assertEquals(1, countOf(count));
+            assertTrue(QueryExecutionFactory.create(ask, ds).execAsk());
+
+            UpdateAction.parseExecute("prefix : <http://example.org/> "
+                    + "insert data { graph :cached { :r10 :p9 \"10\" } }", ds);
+            assertEquals("Update clears the cache", 0, dsg.getQueryCache().size());
+            assertEquals(2, countOf(count));
+        } finally {
+            UpdateAction.parseExecute("drop silent graph <http://example.org/cached>", ds);
+            dsg.setQueryCache(0, 0, 0);
+        }
+    }
+
+    private int countOf(String sparql) {
+        return countOf(sparql, ds);
+    }
+
+    private static int countOf(String sparql, Dataset dataset) {
+        QueryExecution queryExec = QueryExecutionFactory.create(sparql, dataset);
+        return queryExec.execSelect().next().getLiteral("c").getInt();
+    }
+
+    @Test
+    public void testQueryCacheAddDuringSync() {
+        AtomicBoolean armed = new AtomicBoolean();
+        // an add that lands after the query has synced, as one from
+        // another thread could
+        MarkLogicDatasetGraph dsg = new MarkLogicDatasetGraph(
+                ((MarkLogicDatasetGraph) ds.asDatasetGraph()).getDatabaseClient()) {
+            @Override
+            public void syncAdds() {
+                super.syncAdds();
+                if (armed.getAndSet(false)) {
+                    add(NodeFactory.createURI("http://example.org/cached"),
+                            NodeFactory.createURI("http://example.org/r9"),
+                            NodeFactory.createURI("http://example.org/p9"),
+                            NodeFactory.createLiteral("9"));
+                }
+            }
+        };
+        Dataset dataset = DatasetFactory.wrap(dsg);
+        dsg.setQueryCache(10, 1 << 20, 0);
+        String count = "prefix : <http://example.org/> select (count(*) as ?c) where { graph :cached { ?s ?p ?o } }";
+        try {
+            armed.set(true);
+            assertEquals("The query ran before the add reached the server", 0, countOf(count, dataset));
+            dsg.sync();
+            assertEquals("The response that missed the add was not kept", 1, countOf(count, dataset));
+        } finally {
+            UpdateAction.parseExecute("drop silent graph <http://example.org/cached>", dataset);
+        }
+    }
+
     @Test
     public void testTransactions() {
         // add a graph during transaction
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2016-2019 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.semantics.jena.engine;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Test;
+
+import com.marklogic.client.query.StructuredQueryBuilder;
+import com.marklogic.client.query.StructuredQueryDefinition;
+
+public class QueryResultCacheTest {
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[16];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testCapture() throws IOException {
+        QueryResultCache cache = new QueryResultCache(10, 100, 0);
+        QueryResultCache.Key small = new QueryResultCache.Key("small", null);
+        QueryResultCache.Key large = new QueryResultCache.Key("large", null);
+        byte[] smallResponse = new byte[60];
+        byte[] largeResponse = new byte[150];
+        largeResponse[149] = 7;
+
+        InputStream in = cache.capture(small, new ByteArrayInputStream(smallResponse), cache.version());
+        assertArrayEquals(smallResponse, readAll(in));
+        assertArrayEquals(smallResponse, cache.get(small));
+
+        in = cache.capture(large, new ByteArrayInputStream(largeResponse), cache.version());
+        assertArrayEquals("A response too big to cache is still read whole",
+                largeResponse, readAll(in));
+        assertNull(cache.get(large));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testStaleResponseNotCached() {
+        QueryResultCache cache = new QueryResultCache(10, 0, 0);
+        QueryResultCache.Key key = new QueryResultCache.Key("q", null);
+        long version = cache.version();
+        cache.clear();
+        cache.capture(key, new ByteArrayInputStream(new byte[] { 1 }), version);
+        assertNull("A write during the request leaves nothing cached", cache.get(key));
+    }
+
+    @Test
+    public void testConstrainingQueryByIdentity() {
+        StructuredQueryBuilder qb = new StructuredQueryBuilder();
+        StructuredQueryDefinition a = qb.term("x");
+        StructuredQueryDefinition b = qb.term("x");
+        assertEquals(new QueryResultCache.Key("q", a), new QueryResultCache.Key("q", a));
+        assertNotEquals(new QueryResultCache.Key("q", a), new QueryResultCache.Key("q", b));
+    }
+}
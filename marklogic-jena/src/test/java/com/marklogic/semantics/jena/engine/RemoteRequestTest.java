@@ -0,0 +1,132 @@
+/*
+ * Copyright 2016-2019 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.semantics.jena.engine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.jena.query.QueryCancelledException;
+import org.junit.Test;
+
+public class RemoteRequestTest {
+
+    @Test
+    public void testResponse() {
+        assertEquals("answer", new RemoteRequest<>(() -> "answer").get());
+    }
+
+    @Test
+    public void testFailure() {
+        RemoteRequest<String> request = new RemoteRequest<>(() -> {
+            throw new IllegalStateException("server said no");
+        });
+        try {
+            request.get();
+            fail("The request's exception is rethrown");
+        } catch (IllegalStateException e) {
+            assertEquals("server said no", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testAbandonReleasesWaiter() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch respond = new CountDownLatch(1);
+        CountDownLatch closed = new CountDownLatch(1);
+        RemoteRequest<Closeable> request = new RemoteRequest<>(() -> {
+            started.countDown();
+            try {
+                respond.await();
+            } catch (InterruptedException e) {
+                // a blocked socket read would not see the interrupt
+            }
+            return closed::countDown;
+        });
+        started.await();
+        new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                return;
+            }
+            request.abandon();
+        }).start();
+        long begin = System.nanoTime();
+        try {
+            request.get();
+            fail("An abandoned request throws");
+        } catch (QueryCancelledException e) {
+            assertTrue(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - begin) < 5);
+        }
+        respond.countDown();
+        assertTrue("A response that arrives after abandon() is closed",
+                closed.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testRequestsBounded() throws Exception {
+        int max = RemoteRequest.getMaxRequests();
+        RemoteRequest.setMaxRequests(2);
+        CountDownLatch respond = new CountDownLatch(1);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger mostRunning = new AtomicInteger();
+        AtomicBoolean queuedSent = new AtomicBoolean();
+        try {
+            List<RemoteRequest<String>> sent = new ArrayList<>();
+            for (int i = 0; i < 2; i++) {
+                sent.add(new RemoteRequest<>(() -> {
+                    mostRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    try {
+                        respond.await();
+                    } catch (InterruptedException e) {
+                        // answers anyway, as a blocked read would
+                    }
+                    running.decrementAndGet();
+                    return "answer";
+                }));
+            }
+            RemoteRequest<String> queued = new RemoteRequest<>(() -> {
+                queuedSent.set(true);
+                return "queued";
+            });
+            Thread.sleep(50);
+            assertEquals(2, running.get());
+            queued.abandon();
+            respond.countDown();
+            for (RemoteRequest<String> request : sent) {
+                assertEquals("answer", request.get());
+            }
+            RemoteRequest<String> after = new RemoteRequest<>(() -> "after");
+            assertEquals("after", after.get());
+            assertFalse("A request abandoned while waiting for a thread is never sent",
+                    queuedSent.get());
+            assertEquals(2, mostRunning.get());
+        } finally {
+            respond.countDown();
+            RemoteRequest.setMaxRequests(max);
+        }
+    }
+}